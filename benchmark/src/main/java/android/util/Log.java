@@ -0,0 +1,64 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains a stand-in for the Android logger, so the scan engine
+ * can run on a desktop JVM.  Messages are only printed when the
+ * sdscanner.log system property is set, since some are logged per file.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package android.util;
+
+public final class Log {
+    private static final boolean ENABLED =
+            System.getProperty("sdscanner.log") != null;
+
+    private Log() {
+    }
+
+    private static int println(String level, String tag, String msg,
+                               Throwable tr) {
+        if (ENABLED) {
+            System.err.println(level + "/" + tag + ": " + msg);
+            if (tr != null) {
+                tr.printStackTrace();
+            }
+        }
+        return 0;
+    }
+
+    public static int d(String tag, String msg) {
+        return println("D", tag, msg, null);
+    }
+
+    public static int i(String tag, String msg) {
+        return println("I", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg) {
+        return println("W", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println("W", tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return println("E", tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println("E", tag, msg, tr);
+    }
+}
@@ -0,0 +1,214 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains an in-memory stand-in for the media database.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Media database rows held in a sorted list.  Pages are answered by binary
+ * search, the way the provider would use its _data index, and an optional
+ * per-query delay stands in for the provider round trip.  Pages can also be
+ * made to fail halfway through, as a busy provider's cursors sometimes do.
+ */
+public class FakeMediaIndex implements MediaIndex {
+
+    static class Row {
+        long mId;
+        String mData;
+        long mDateModified;
+
+        Row(long id, String data, long dateModified) {
+            mId = id;
+            mData = data;
+            mDateModified = dateModified;
+        }
+    }
+
+    private static final Comparator<Row> ROW_ORDER = new Comparator<Row>() {
+        public int compare(Row a, Row b) {
+            int order = PathSet.comparePaths(a.mData, b.mData);
+            if (order != 0) {
+                return order;
+            }
+            return a.mId < b.mId ? -1 : (a.mId == b.mId ? 0 : 1);
+        }
+    };
+
+    ArrayList<Row> mRows = new ArrayList<Row>();
+    boolean mSorted = true;
+    long mNextId = 1;
+    long mQueryDelayNanos = 0;
+    int mQueryCount = 0;
+    int mFailEvery = 0;
+
+    public void setQueryDelayNanos(long queryDelayNanos) {
+        mQueryDelayNanos = queryDelayNanos;
+    }
+
+    /**
+     * Makes every failEvery'th page query throw halfway through the page.
+     * Zero turns it off.
+     */
+    public void setFailEvery(int failEvery) {
+        mFailEvery = failEvery;
+    }
+
+    public int getQueryCount() {
+        return mQueryCount;
+    }
+
+    public int size() {
+        return mRows.size();
+    }
+
+    public void addRow(String data, long dateModified) {
+        mRows.add(new Row(mNextId++, data, dateModified));
+        mSorted = false;
+    }
+
+    /**
+     * Fills the index from a walked file list.  Every staleEvery'th file
+     * gets a row older than the file, every newEvery'th file gets no row,
+     * and one row for a deleted file is added per missingEvery files.  Any
+     * of these may be zero to turn it off.
+     */
+    public void populate(PathList paths, int staleEvery, int newEvery,
+                         int missingEvery) {
+        // Later than any file the tree generator creates.
+        long upToDate = System.currentTimeMillis() / 1000L + 3600;
+        int i = 0;
+        Iterator<String> iterator = paths.sortedIterator();
+        while (iterator.hasNext()) {
+            String path = iterator.next();
+            i++;
+            if (missingEvery > 0 && i % missingEvery == 0) {
+                addRow(path + ".deleted", upToDate);
+            }
+            if (newEvery > 0 && i % newEvery == 0) {
+                continue;
+            }
+            boolean stale = staleEvery > 0 && i % staleEvery == 0;
+            addRow(path, stale ? 0 : upToDate);
+        }
+    }
+
+    private void sort() {
+        if (!mSorted) {
+            Collections.sort(mRows, ROW_ORDER);
+            mSorted = true;
+        }
+    }
+
+    private void delay() {
+        mQueryCount++;
+        if (mQueryDelayNanos > 0) {
+            LockSupport.parkNanos(mQueryDelayNanos);
+        }
+    }
+
+    public int countRows(ScopeMatcher scope) {
+        delay();
+        if (scope == null) {
+            return mRows.size();
+        }
+        int count = 0;
+        for (int i = 0; i < mRows.size(); i++) {
+            if (scope.matches(mRows.get(i).mData)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public Rows queryPage(ScopeMatcher scope, String afterData, long afterId,
+                          int limit) {
+        delay();
+        sort();
+        // First row after (afterData, afterId).
+        Row key = new Row(afterId, afterData, 0);
+        int low = 0;
+        int high = mRows.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ROW_ORDER.compare(mRows.get(mid), key) <= 0) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        final int failAt = mFailEvery > 0 && mQueryCount % mFailEvery == 0 ?
+                limit / 2 : -1;
+        final ArrayList<Row> page = new ArrayList<Row>();
+        for (int i = low; i < mRows.size() && page.size() < limit; i++) {
+            Row row = mRows.get(i);
+            if (scope == null || scope.matches(row.mData)) {
+                page.add(row);
+            }
+        }
+        return new Rows() {
+            int mPosition = -1;
+
+            public boolean moveToNext() {
+                mPosition++;
+                if (mPosition == failAt) {
+                    throw new IllegalStateException("Simulated cursor failure");
+                }
+                return mPosition < page.size();
+            }
+
+            public long getId() {
+                return page.get(mPosition).mId;
+            }
+
+            public String getData() {
+                return page.get(mPosition).mData;
+            }
+
+            public long getDateModified() {
+                return page.get(mPosition).mDateModified;
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    public int deleteRows(long[] ids) {
+        delay();
+        HashSet<Long> doomed = new HashSet<Long>();
+        for (long id : ids) {
+            doomed.add(id);
+        }
+        ArrayList<Row> kept = new ArrayList<Row>(mRows.size());
+        for (int i = 0; i < mRows.size(); i++) {
+            if (!doomed.contains(mRows.get(i).mId)) {
+                kept.add(mRows.get(i));
+            }
+        }
+        int deleted = mRows.size() - kept.size();
+        mRows = kept;
+        return deleted;
+    }
+}
@@ -0,0 +1,70 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains a stand-in for the system media scanner with a
+ * configurable per-file latency.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Scans requests one at a time on a single thread, like the scanner
+ * service, spending a fixed time on each before reporting it complete.
+ */
+public class FakeMediaScanner implements MediaScanner {
+    long mLatencyNanos;
+    ExecutorService mService;
+    Client mClient;
+    AtomicInteger mScanned = new AtomicInteger();
+
+    public FakeMediaScanner(long latencyNanos) {
+        mLatencyNanos = latencyNanos;
+    }
+
+    public int getScanned() {
+        return mScanned.get();
+    }
+
+    public void connect(Client client) {
+        mClient = client;
+        mService = Executors.newSingleThreadExecutor();
+        mService.execute(new Runnable() {
+            public void run() {
+                mClient.onConnected();
+            }
+        });
+    }
+
+    public void scanFile(final String path) {
+        mService.execute(new Runnable() {
+            public void run() {
+                if (mLatencyNanos > 0) {
+                    LockSupport.parkNanos(mLatencyNanos);
+                }
+                mScanned.incrementAndGet();
+                mClient.onScanCompleted(path);
+            }
+        });
+    }
+
+    public void disconnect() {
+        mService.shutdown();
+    }
+}
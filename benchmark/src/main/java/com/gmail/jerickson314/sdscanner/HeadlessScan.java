@@ -0,0 +1,303 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains a command line harness that runs one scan against a
+ * synthetic tree, the fake media database and the fake media scanner, and
+ * prints how long each phase took.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the phases of a scan the way ScanFragment strings them together,
+ * minus the UI.  The static phase methods are shared with the benchmarks.
+ *
+ * Usage: HeadlessScan [files] [WIDE|DEEP] [scanner latency in us] [base]
+ *                     [fail every n'th database page]
+ *                     [MEDIA|MEDIA_AND_DOCUMENTS|EVERYTHING]
+ *                     [paths in memory before spilling, 0 for none]
+ *                     [true to cache walked mtimes]
+ *                     [false to leave missing files' rows to the scanner]
+ */
+public class HeadlessScan {
+
+    // Mix of database states used when populating the fake index.
+    static final int STALE_EVERY = 20;
+    static final int NEW_EVERY = 25;
+    static final int MISSING_EVERY = 50;
+    // As in ScanFragment.
+    static final int DB_ATTEMPTS = 3;
+
+    private static final ParallelFileWalker.Listener QUIET_LISTENER =
+            new ParallelFileWalker.Listener() {
+                public void onSkippedFolder(File folder) {
+                }
+
+                public void onPathAdded(String path) {
+                }
+            };
+
+    // Stands in for android.system.Os.stat(), which the JVM lacks.
+    static final StatCache.Stat NIO_STAT = new StatCache.Stat() {
+        public long stat(String path) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(
+                        Paths.get(path), BasicFileAttributes.class);
+                if (attributes.isDirectory()) {
+                    return StatCache.DIRECTORY;
+                }
+                return attributes.lastModifiedTime().toMillis();
+            }
+            catch (IOException ex) {
+                return StatCache.MISSING;
+            }
+        }
+    };
+
+    private static final DatabaseReader.ProgressListener QUIET_PROGRESS =
+            new DatabaseReader.ProgressListener() {
+                public void onProgress(String data, int progress) {
+                }
+            };
+
+    public static PathSet walk(ScanParameters parameters,
+                               ScanIndex previousIndex, ScanIndex nextIndex,
+                               ScanMetrics metrics)
+            throws IOException, InterruptedException {
+        PathSet files = new PathSet();
+        walkInto(files, parameters, previousIndex, nextIndex, null, metrics);
+        return files;
+    }
+
+    /**
+     * Walks into files, which may spill, as ScanFragment does.
+     *
+     * @param statCache Receives walked files' mtimes; may be null.
+     */
+    public static void walkInto(PathList files, ScanParameters parameters,
+                                ScanIndex previousIndex, ScanIndex nextIndex,
+                                StatCache statCache, ScanMetrics metrics)
+            throws IOException, InterruptedException {
+        metrics.startPhase(ScanMetrics.Phase.WALK);
+        ParallelFileWalker walker = new ParallelFileWalker(parameters, files,
+                ParallelFileWalker.DEFAULT_THREADS, QUIET_LISTENER);
+        walker.setStatCache(statCache);
+        walker.setMetrics(metrics);
+        walker.setScanIndexes(previousIndex, nextIndex);
+        walker.walk(parameters.getPath());
+        metrics.endPhase(ScanMetrics.Phase.WALK);
+    }
+
+    /**
+     * Reconciles files against index in place, leaving only the paths the
+     * media scanner needs to see.
+     */
+    public static Reconciler reconcile(PathList files, MediaIndex index,
+                                       ScanParameters parameters,
+                                       ScanMetrics metrics)
+            throws IOException {
+        return reconcile(files, index, parameters, null, metrics);
+    }
+
+    /**
+     * As above, taking walked files' mtimes from statCache if not null.
+     * Missing files' rows are deleted from index directly if parameters
+     * say so, as ScanFragment does.
+     */
+    public static Reconciler reconcile(final PathList files,
+                                       MediaIndex index,
+                                       ScanParameters parameters,
+                                       StatCache statCache,
+                                       ScanMetrics metrics)
+            throws IOException {
+        metrics.startPhase(ScanMetrics.Phase.DATABASE);
+        final MissingRowRemover remover = !parameters.getDeleteMissingRows() ?
+                null : new MissingRowRemover(index,
+                        MissingRowRemover.DEFAULT_BATCH_SIZE,
+                        new MissingRowRemover.Listener() {
+                            public void onRemoved(String path) {
+                                files.removePath(path);
+                            }
+
+                            public void onLeftForScanner(String path) {
+                            }
+                        });
+        if (remover != null) {
+            remover.setMetrics(metrics);
+        }
+        Reconciler reconciler = new Reconciler(files, parameters,
+                new Reconciler.Listener() {
+                    public void onNewOnDisk(String path) {
+                    }
+
+                    public void onStale(String path) {
+                    }
+
+                    public void onMissing(long id, String path) {
+                        if (remover != null) {
+                            remover.add(id, path);
+                        }
+                    }
+                });
+        reconciler.setMetrics(metrics);
+        reconciler.setStatCache(statCache);
+        DatabaseReader reader = new DatabaseReader(index, parameters);
+        reader.setMetrics(metrics);
+        boolean complete;
+        try {
+            complete = reader.readWithRetries(reconciler, QUIET_PROGRESS, DB_ATTEMPTS,
+                    new DatabaseReader.RetryListener() {
+                        public void onRetry(int attempt, long delayMillis,
+                                            Exception ex) {
+                        }
+                    });
+        }
+        catch (InterruptedException ex) {
+            throw new IOException(ex);
+        }
+        if (!complete) {
+            throw new IOException("Gave up reading the index after " +
+                                  reader.getAttempts() + " attempts");
+        }
+        reconciler.finish();
+        if (remover != null) {
+            remover.flush();
+        }
+        metrics.endPhase(ScanMetrics.Phase.DATABASE);
+        return reconciler;
+    }
+
+    /**
+     * Submits files to scanner and waits for every one to be reported on.
+     * A single thread stands in for the main thread.
+     */
+    public static ScanSubmitter submit(final PathList files,
+                                       MediaScanner scanner,
+                                       ScanParameters parameters,
+                                       ScanMetrics metrics)
+            throws InterruptedException {
+        metrics.startPhase(ScanMetrics.Phase.SCAN);
+        final CountDownLatch done = new CountDownLatch(1);
+        ExecutorService mainThread = Executors.newSingleThreadExecutor();
+        try {
+            final ScanSubmitter submitter = new ScanSubmitter(scanner,
+                    mainThread, parameters.getScanWindow(),
+                    parameters.getScanBatchSize(),
+                    new ScanSubmitter.Listener() {
+                        public void onPathScanned(String path, int completed,
+                                                  int total) {
+                        }
+
+                        public void onAllScanned() {
+                            done.countDown();
+                        }
+                    });
+            submitter.setMetrics(metrics);
+            // Only submit() may be called off the submitter's thread.
+            mainThread.execute(new Runnable() {
+                public void run() {
+                    submitter.start();
+                    submitter.submitAll(files);
+                    submitter.finishSubmitting();
+                }
+            });
+            done.await();
+            metrics.endPhase(ScanMetrics.Phase.SCAN);
+            return submitter;
+        }
+        finally {
+            mainThread.shutdown();
+        }
+    }
+
+    private static void report(String phase, long startNanos, String detail) {
+        System.out.println(phase + ": " +
+                (System.nanoTime() - startNanos) / 1000000L + " ms, " +
+                detail);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        SyntheticTree.Shape shape = args.length > 1 ?
+                SyntheticTree.Shape.valueOf(args[1]) : SyntheticTree.Shape.WIDE;
+        long latencyNanos =
+                (args.length > 2 ? Long.parseLong(args[2]) : 200) * 1000L;
+        File base = new File(args.length > 3 ? args[3] : "target/trees");
+        int failEvery = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+        MediaTypeFilter.Mode fileTypes = args.length > 5 ?
+                MediaTypeFilter.Mode.valueOf(args[5]) :
+                MediaTypeFilter.Mode.EVERYTHING;
+        int spillThreshold = args.length > 6 ? Integer.parseInt(args[6]) : 0;
+        StatCache statCache = args.length > 7 && Boolean.parseBoolean(args[7]) ?
+                new StatCache(NIO_STAT) : null;
+        boolean deleteMissingRows =
+                args.length <= 8 || Boolean.parseBoolean(args[8]);
+
+        long start = System.nanoTime();
+        SyntheticTree tree =
+                new SyntheticTree(base, fileCount, shape, true, true).create();
+        report("Tree", start, tree.getRoot().getPath());
+
+        ScanParameters parameters = new ScanParameters(tree.getRoot(), true);
+        parameters.setTypeFilter(new MediaTypeFilter(fileTypes, true));
+        parameters.setSpillThreshold(spillThreshold);
+        parameters.setDeleteMissingRows(deleteMissingRows);
+        ScanMetrics metrics = new ScanMetrics();
+        start = System.nanoTime();
+        ScanIndex scanIndex = new ScanIndex(tree.getRoot().getPath(),
+                                            System.currentTimeMillis());
+        PathList files = new PathSet();
+        if (spillThreshold > 0) {
+            File spillDirectory = new File(base, "spill");
+            SpillingPathSet.deleteLeftovers(spillDirectory);
+            files = new SpillingPathSet(spillDirectory, spillThreshold);
+        }
+        walkInto(files, parameters, null, scanIndex, statCache, metrics);
+        report("Walk", start, files.size() + " files");
+
+        start = System.nanoTime();
+        walk(parameters, scanIndex, null, new ScanMetrics());
+        report("Incremental walk", start, "index of " + scanIndex.size() +
+               " folders");
+
+        FakeMediaIndex index = new FakeMediaIndex();
+        index.populate(files, STALE_EVERY, NEW_EVERY, MISSING_EVERY);
+        index.setFailEvery(failEvery);
+        start = System.nanoTime();
+        Reconciler reconciler =
+                reconcile(files, index, parameters, statCache, metrics);
+        report("Reconcile", start, reconciler.getNewCount() + " new, " +
+               reconciler.getStaleCount() + " stale, " +
+               reconciler.getMissingCount() + " missing, " +
+               reconciler.getUpToDateCount() + " up to date, " +
+               index.getQueryCount() + " queries");
+
+        FakeMediaScanner scanner = new FakeMediaScanner(latencyNanos);
+        start = System.nanoTime();
+        submit(files, scanner, parameters, metrics);
+        report("Submit", start, scanner.getScanned() + " scanned");
+        metrics.finish();
+        System.out.println(metrics.toJson());
+    }
+}
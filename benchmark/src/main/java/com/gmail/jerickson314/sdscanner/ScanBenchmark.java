@@ -0,0 +1,139 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the JMH benchmarks for the walk, reconcile and submit
+ * phases of a scan.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each phase runs once per invocation over a whole tree, so timings are
+ * single shots.  The full parameter grid is large; narrow it with -p, for
+ * example -p files=100000 -p shape=DEEP.  Trees are created under the
+ * sdscanner.trees system property, target/trees by default.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanBenchmark {
+
+    /**
+     * Settings only the submit phase depends on, kept apart so they don't
+     * multiply the runs of the other phases.
+     */
+    @State(Scope.Benchmark)
+    public static class ScannerState {
+        // Per-file time of the fake media scanner, in microseconds.
+        @Param({"0", "200"})
+        long scannerLatency;
+    }
+
+    @Param({"10000", "100000", "1000000"})
+    int files;
+
+    @Param({"WIDE", "DEEP"})
+    String shape;
+
+    @Param({"false", "true"})
+    boolean symlinkLoops;
+
+    @Param({"false", "true"})
+    boolean nomedia;
+
+    @Param({"true", "false"})
+    boolean lowStatWalk;
+
+    ScanParameters mParameters;
+    ScanIndex mScanIndex;
+    FakeMediaIndex mMediaIndex;
+    PathSet mWalked;
+    // Fresh copies for the phases that consume their input.
+    PathSet mToReconcile;
+    PathSet mToSubmit;
+
+    @Setup(Level.Trial)
+    public void createTree() throws Exception {
+        File base = new File(System.getProperty("sdscanner.trees",
+                                                "target/trees"));
+        SyntheticTree tree = new SyntheticTree(base, files,
+                SyntheticTree.Shape.valueOf(shape), symlinkLoops, nomedia)
+                .create();
+        mParameters = new ScanParameters(tree.getRoot(), true);
+        mParameters.setLowStatWalk(lowStatWalk);
+        mScanIndex = new ScanIndex(tree.getRoot().getPath(),
+                                   System.currentTimeMillis());
+        mWalked = HeadlessScan.walk(mParameters, null, mScanIndex,
+                                     new ScanMetrics());
+        mMediaIndex = new FakeMediaIndex();
+        mMediaIndex.populate(mWalked, HeadlessScan.STALE_EVERY,
+                HeadlessScan.NEW_EVERY, HeadlessScan.MISSING_EVERY);
+        mToSubmit = new PathSet();
+        mToSubmit.addAll(mWalked);
+        HeadlessScan.reconcile(mToSubmit, mMediaIndex, mParameters,
+                               new ScanMetrics());
+    }
+
+    @Setup(Level.Invocation)
+    public void copyWalked() {
+        mToReconcile = new PathSet();
+        mToReconcile.addAll(mWalked);
+    }
+
+    @Benchmark
+    public int walk() throws Exception {
+        return HeadlessScan.walk(mParameters, null, null, new ScanMetrics())
+                .size();
+    }
+
+    @Benchmark
+    public int walkIncremental() throws Exception {
+        return HeadlessScan.walk(mParameters, mScanIndex, null,
+                                 new ScanMetrics()).size();
+    }
+
+    @Benchmark
+    public int reconcile() throws Exception {
+        return HeadlessScan.reconcile(mToReconcile, mMediaIndex, mParameters,
+                                      new ScanMetrics()).getUpToDateCount();
+    }
+
+    @Benchmark
+    public int submit(ScannerState state) throws Exception {
+        FakeMediaScanner scanner =
+                new FakeMediaScanner(state.scannerLatency * 1000L);
+        return HeadlessScan.submit(mToSubmit, scanner, mParameters,
+                                   new ScanMetrics()).getCompleted();
+    }
+}
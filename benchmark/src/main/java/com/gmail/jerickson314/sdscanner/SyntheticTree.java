@@ -0,0 +1,123 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the generator for the synthetic folder trees the
+ * benchmarks scan.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Builds a tree of empty files on the local filesystem.  Trees are kept
+ * under a base folder keyed by their settings and reused by later runs,
+ * since the larger ones take minutes to create.
+ *
+ * WIDE trees put FILES_PER_FOLDER files in each of many sibling folders.
+ * DEEP trees spread the same files over chains of folders DEPTH levels
+ * deep.  Optionally every LOOP_EVERY'th folder gets a symlink back to the
+ * tree root, and every NOMEDIA_EVERY'th folder a .nomedia file.
+ */
+public class SyntheticTree {
+
+    enum Shape { WIDE, DEEP }
+
+    static final int FILES_PER_FOLDER = 100;
+    static final int DEPTH = 32;
+    static final int LOOP_EVERY = 50;
+    static final int NOMEDIA_EVERY = 20;
+
+    private static final String[] EXTENSIONS =
+        {".mp3", ".jpg", ".mp4", ".ogg", ".png", ".txt"};
+    private static final String COMPLETE_MARKER = ".complete";
+
+    File mRoot;
+    int mFiles;
+    Shape mShape;
+    boolean mSymlinkLoops;
+    boolean mNomedia;
+
+    public SyntheticTree(File base, int files, Shape shape,
+                         boolean symlinkLoops, boolean nomedia)
+            throws IOException {
+        mFiles = files;
+        mShape = shape;
+        mSymlinkLoops = symlinkLoops;
+        mNomedia = nomedia;
+        String name = shape.name().toLowerCase() + "-" + files +
+                (symlinkLoops ? "-loops" : "") + (nomedia ? "-nomedia" : "");
+        base.mkdirs();
+        // Canonical, since the walker reports canonical paths.
+        mRoot = new File(base, name).getCanonicalFile();
+    }
+
+    public File getRoot() {
+        return mRoot;
+    }
+
+    public int getFiles() {
+        return mFiles;
+    }
+
+    /**
+     * Creates the tree unless a complete copy is already there.
+     */
+    public SyntheticTree create() throws IOException {
+        File marker = new File(mRoot.getParentFile(),
+                               mRoot.getName() + COMPLETE_MARKER);
+        if (marker.exists()) {
+            return this;
+        }
+        int folders = (mFiles + FILES_PER_FOLDER - 1) / FILES_PER_FOLDER;
+        int file = 0;
+        for (int folder = 0; folder < folders; folder++) {
+            File dir = folderFor(folder);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create " + dir);
+            }
+            for (int i = 0; i < FILES_PER_FOLDER && file < mFiles; i++) {
+                File child = new File(dir, "f" + file +
+                        EXTENSIONS[file % EXTENSIONS.length]);
+                child.createNewFile();
+                file++;
+            }
+            if (mSymlinkLoops && folder % LOOP_EVERY == LOOP_EVERY - 1) {
+                File link = new File(dir, "loop");
+                if (!Files.isSymbolicLink(link.toPath())) {
+                    Files.createSymbolicLink(link.toPath(), mRoot.toPath());
+                }
+            }
+            if (mNomedia && folder % NOMEDIA_EVERY == NOMEDIA_EVERY - 1) {
+                new File(dir, ".nomedia").createNewFile();
+            }
+        }
+        marker.createNewFile();
+        return this;
+    }
+
+    private File folderFor(int folder) {
+        if (mShape == Shape.WIDE) {
+            return new File(mRoot, "d" + folder);
+        }
+        StringBuilder path = new StringBuilder("c").append(folder / DEPTH);
+        for (int level = 0; level < folder % DEPTH; level++) {
+            path.append("/l").append(level);
+        }
+        return new File(mRoot, path.toString());
+    }
+}
@@ -0,0 +1,161 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains a command line harness for the watch mode coalescing,
+ * fed by java.nio.file.WatchService in place of FileObserver.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a folder tree with a WatchService (inotify on Linux), one key
+ * per folder up to a cap like DirectoryWatcher, and prints what the
+ * ChangeCoalescer releases.  Make changes under the folder and watch the
+ * batches come out.
+ *
+ * Usage: WatchHarness folder [max watches] [quiet ms]
+ */
+public class WatchHarness {
+    // As in DirectoryWatcher, which needs Android to build.
+    static final int DEFAULT_MAX_WATCHES = 4096;
+
+    WatchService mService;
+    ChangeCoalescer mCoalescer;
+    int mMaxWatches;
+    HashMap<WatchKey, String> mDirectories = new HashMap<WatchKey, String>();
+    ArrayList<String> mUnwatchedTrees = new ArrayList<String>();
+
+    public WatchHarness(ChangeCoalescer coalescer, int maxWatches)
+            throws IOException {
+        mService = FileSystems.getDefault().newWatchService();
+        mCoalescer = coalescer;
+        mMaxWatches = maxWatches;
+    }
+
+    public void watchTree(File root) throws IOException {
+        LinkedList<File> queue = new LinkedList<File>();
+        queue.add(root.getCanonicalFile());
+        while (!queue.isEmpty()) {
+            File directory = queue.removeFirst();
+            String[] names = directory.list();
+            if (names == null || new File(directory, ".nomedia").exists()) {
+                continue;
+            }
+            if (mDirectories.size() >= mMaxWatches) {
+                mUnwatchedTrees.add(directory.getPath());
+                continue;
+            }
+            WatchKey key = directory.toPath().register(mService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            mDirectories.put(key, directory.getPath());
+            for (String name : names) {
+                File child = new File(directory, name);
+                if (child.isDirectory()) {
+                    queue.add(child.getCanonicalFile());
+                }
+            }
+        }
+    }
+
+    public int getWatchCount() {
+        return mDirectories.size();
+    }
+
+    public ArrayList<String> getUnwatchedTrees() {
+        return mUnwatchedTrees;
+    }
+
+    /**
+     * Moves events into the coalescer, waiting at most timeoutMillis for
+     * the first one.
+     */
+    public void poll(long timeoutMillis, long now)
+            throws IOException, InterruptedException {
+        WatchKey key = mService.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        while (key != null) {
+            String directory = mDirectories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    mCoalescer.addEvent(directory, null, true, now);
+                    continue;
+                }
+                String name = ((Path) event.context()).toString();
+                File child = new File(directory, name);
+                // WatchService doesn't say whether a deleted entry was a
+                // folder, so deletions are passed on as files.
+                boolean tree = event.kind() ==
+                        StandardWatchEventKinds.ENTRY_CREATE &&
+                        child.isDirectory();
+                if (tree) {
+                    watchTree(child);
+                }
+                mCoalescer.addEvent(directory,
+                        name.equals(".nomedia") ? null : name, tree, now);
+            }
+            if (!key.reset()) {
+                mDirectories.remove(key);
+            }
+            key = mService.poll();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File root = new File(args[0]);
+        int maxWatches = args.length > 1 ? Integer.parseInt(args[1]) :
+                DEFAULT_MAX_WATCHES;
+        long quietMillis = args.length > 2 ? Long.parseLong(args[2]) :
+                ChangeCoalescer.DEFAULT_QUIET_MILLIS;
+        ChangeCoalescer coalescer = new ChangeCoalescer(quietMillis,
+                ChangeCoalescer.DEFAULT_MAX_DELAY_MILLIS,
+                ChangeCoalescer.DEFAULT_MAX_FILES_PER_DIRECTORY);
+        WatchHarness harness = new WatchHarness(coalescer, maxWatches);
+        harness.watchTree(root);
+        System.out.println("Watching " + harness.getWatchCount() +
+                " folders, " + harness.getUnwatchedTrees().size() +
+                " subtrees over the limit");
+        ChangeCoalescer.Listener printer = new ChangeCoalescer.Listener() {
+            public void onFilesChanged(String directory,
+                                       ArrayList<String> paths) {
+                System.out.println("Files: " + paths);
+            }
+
+            public void onTreeChanged(String path) {
+                System.out.println("Tree: " + path);
+            }
+        };
+        long wait = quietMillis;
+        while (true) {
+            harness.poll(wait, System.currentTimeMillis());
+            long now = System.currentTimeMillis();
+            long next = coalescer.flush(now, printer);
+            wait = next < 0 ? quietMillis : Math.max(1, next - now);
+        }
+    }
+}
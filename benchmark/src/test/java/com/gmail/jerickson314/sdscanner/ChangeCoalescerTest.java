@@ -0,0 +1,148 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains tests of the batching of storage change events.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ChangeCoalescerTest {
+
+    // Records what was released, sorted so HashMap order doesn't matter.
+    static class Recorder implements ChangeCoalescer.Listener {
+        List<String> mTrees = new ArrayList<String>();
+        List<String> mFiles = new ArrayList<String>();
+
+        public void onFilesChanged(String directory,
+                                   ArrayList<String> paths) {
+            for (String path : paths) {
+                assertEquals(directory,
+                             path.substring(0, path.lastIndexOf('/')));
+                mFiles.add(path);
+            }
+            Collections.sort(mFiles);
+        }
+
+        public void onTreeChanged(String path) {
+            mTrees.add(path);
+            Collections.sort(mTrees);
+        }
+    }
+
+    static Recorder flush(ChangeCoalescer coalescer, long now) {
+        Recorder recorder = new Recorder();
+        coalescer.flush(now, recorder);
+        return recorder;
+    }
+
+    @Test
+    public void nestedTreesCollapseIntoAncestor() {
+        ChangeCoalescer coalescer = new ChangeCoalescer(100, 1000, 10);
+        coalescer.addEvent("/s/a/b", "c", true, 0);
+        coalescer.addEvent("/s/a", "b", true, 0);
+        coalescer.addEvent("/s/a/b/c/d", "e", true, 0);
+        coalescer.addEvent("/s/x", "y", true, 0);
+        Recorder recorder = flush(coalescer, 100);
+        assertEquals(Arrays.asList("/s/a/b", "/s/x/y"), recorder.mTrees);
+        assertTrue(recorder.mFiles.isEmpty());
+    }
+
+    @Test
+    public void filesBelowReleasedTreeAreDropped() {
+        ChangeCoalescer coalescer = new ChangeCoalescer(100, 1000, 10);
+        coalescer.addEvent("/s/a", "b", true, 0);
+        coalescer.addEvent("/s/a/b", "1.jpg", false, 0);
+        coalescer.addEvent("/s/a/b/c", "2.jpg", false, 0);
+        // Shares a prefix with the tree but isn't below it.
+        coalescer.addEvent("/s/a/bc", "3.jpg", false, 0);
+        coalescer.addEvent("/s/a", "4.jpg", false, 0);
+        Recorder recorder = flush(coalescer, 100);
+        assertEquals(Arrays.asList("/s/a/b"), recorder.mTrees);
+        assertEquals(Arrays.asList("/s/a/4.jpg", "/s/a/bc/3.jpg"),
+                     recorder.mFiles);
+    }
+
+    @Test
+    public void wholeDirectoryCoversItsEvents() {
+        ChangeCoalescer coalescer = new ChangeCoalescer(100, 1000, 10);
+        coalescer.addEvent("/s/a", "1.jpg", false, 0);
+        coalescer.addEvent("/s/a", "b", true, 0);
+        coalescer.addEvent("/s/a", null, false, 0);
+        coalescer.addEvent("/s/a", "2.jpg", false, 0);
+        coalescer.addEvent("/s/a/c", "3.jpg", false, 0);
+        Recorder recorder = flush(coalescer, 100);
+        assertEquals(Arrays.asList("/s/a"), recorder.mTrees);
+        assertTrue(recorder.mFiles.isEmpty());
+    }
+
+    @Test
+    public void tooManyFilesBecomesTree() {
+        ChangeCoalescer coalescer = new ChangeCoalescer(100, 1000, 3);
+        for (int i = 0; i < 3; i++) {
+            coalescer.addEvent("/s/a", i + ".jpg", false, 0);
+        }
+        coalescer.addEvent("/s/b", "0.jpg", false, 0);
+        Recorder recorder = flush(coalescer, 100);
+        assertTrue(recorder.mTrees.isEmpty());
+        assertEquals(4, recorder.mFiles.size());
+
+        for (int i = 0; i < 4; i++) {
+            coalescer.addEvent("/s/a", i + ".jpg", false, 200);
+        }
+        recorder = flush(coalescer, 300);
+        assertEquals(Arrays.asList("/s/a"), recorder.mTrees);
+        assertTrue(recorder.mFiles.isEmpty());
+    }
+
+    @Test
+    public void releasesAfterQuietOrMaxDelay() {
+        ChangeCoalescer coalescer = new ChangeCoalescer(100, 250, 10);
+        assertTrue(coalescer.addEvent("/s/a", "1.jpg", false, 0));
+        assertFalse(coalescer.addEvent("/s/b", "1.jpg", false, 50));
+
+        Recorder recorder = new Recorder();
+        assertEquals(100, coalescer.flush(99, recorder));
+        assertTrue(recorder.mFiles.isEmpty());
+
+        // /s/a has been quiet long enough; /s/b keeps changing.
+        recorder = new Recorder();
+        coalescer.addEvent("/s/b", "2.jpg", false, 90);
+        assertEquals(190, coalescer.flush(100, recorder));
+        assertEquals(Arrays.asList("/s/a/1.jpg"), recorder.mFiles);
+
+        // Never quiet, so released at the maximum delay.
+        coalescer.addEvent("/s/b", "3.jpg", false, 180);
+        coalescer.addEvent("/s/b", "4.jpg", false, 270);
+        recorder = new Recorder();
+        assertEquals(300, coalescer.flush(280, recorder));
+        assertTrue(recorder.mFiles.isEmpty());
+        assertEquals(-1, coalescer.flush(300, recorder));
+        assertEquals(Arrays.asList("/s/b/1.jpg", "/s/b/2.jpg", "/s/b/3.jpg",
+                                   "/s/b/4.jpg"),
+                     recorder.mFiles);
+        assertTrue(coalescer.isEmpty());
+    }
+}
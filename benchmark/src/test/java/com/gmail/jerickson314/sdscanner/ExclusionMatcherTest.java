@@ -0,0 +1,136 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains tests of the exclusion patterns.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ExclusionMatcherTest {
+
+    static void assertExcluded(ExclusionMatcher matcher, String... paths) {
+        for (String path : paths) {
+            assertTrue(path, matcher.excludes(path));
+        }
+    }
+
+    static void assertIncluded(ExclusionMatcher matcher, String... paths) {
+        for (String path : paths) {
+            assertFalse(path, matcher.excludes(path));
+        }
+    }
+
+    @Test
+    public void plainNameMatchesAnyDepth() {
+        ExclusionMatcher matcher = ExclusionMatcher.compile(".thumbnails");
+        assertExcluded(matcher, ".thumbnails", "DCIM/.thumbnails",
+                       "DCIM/.thumbnails/1.jpg");
+        assertIncluded(matcher, ".thumbnailsx", "x.thumbnails", "DCIM",
+                       "DCIM/thumbnails/1.jpg");
+    }
+
+    @Test
+    public void segmentsMatchInARowAtAnyDepth() {
+        ExclusionMatcher matcher = ExclusionMatcher.compile("Android/data");
+        assertExcluded(matcher, "Android/data", "Android/data/com.x/a.mp3",
+                       "USB/Android/data");
+        assertIncluded(matcher, "Android", "Android/datax", "data",
+                       "Android/x/data", "Android/obb/data");
+    }
+
+    @Test
+    public void leadingSlashAnchorsToRoot() {
+        ExclusionMatcher matcher = ExclusionMatcher.compile("/DCIM/.trash");
+        assertExcluded(matcher, "DCIM/.trash", "DCIM/.trash/1.jpg");
+        assertIncluded(matcher, "x/DCIM/.trash", "DCIM", ".trash");
+
+        matcher = ExclusionMatcher.compile("/Podcasts");
+        assertExcluded(matcher, "Podcasts/a.mp3");
+        assertIncluded(matcher, "Music/Podcasts/a.mp3");
+    }
+
+    @Test
+    public void starAndQuestionMarkStayWithinSegment() {
+        ExclusionMatcher matcher =
+                ExclusionMatcher.compile("*.bak\nIMG_????.tmp\ncache*/x");
+        assertExcluded(matcher, "a.bak", "dir/a.bak", ".bak",
+                       "DCIM/IMG_0001.tmp", "cache/x", "a/cache2/x");
+        assertIncluded(matcher, "a.bak2", "a.bak.jpg", "IMG_001.tmp",
+                       "IMG_00001.tmp", "cache/y/x", "cach/x");
+    }
+
+    @Test
+    public void globsQuoteRegexCharacters() {
+        ExclusionMatcher matcher = ExclusionMatcher.compile("(1)*.jpg");
+        assertExcluded(matcher, "(1)a.jpg", "(1).jpg");
+        assertIncluded(matcher, "1a.jpg", "(1)ajpg", "x(1)a.jpg");
+    }
+
+    @Test
+    public void doubleStarMatchesAnyNumberOfSegments() {
+        ExclusionMatcher matcher =
+                ExclusionMatcher.compile("/Music/**/cache");
+        assertExcluded(matcher, "Music/cache", "Music/a/cache",
+                       "Music/a/b/c/cache/1.mp3");
+        assertIncluded(matcher, "x/Music/a/cache", "Music/a/cachex",
+                       "Music/cache2");
+
+        matcher = ExclusionMatcher.compile("a/**/b/**/c");
+        assertExcluded(matcher, "a/b/c", "x/a/1/b/2/3/c", "a/b/b/c/d");
+        assertIncluded(matcher, "a/c/b", "a/b");
+
+        // Alone, everything below the root.
+        matcher = ExclusionMatcher.compile("**");
+        assertExcluded(matcher, "a", "a/b");
+        assertIncluded(matcher, "");
+    }
+
+    @Test
+    public void excludesEntryIgnoresFoldersAbove() {
+        ExclusionMatcher matcher =
+                ExclusionMatcher.compile(".hidden\nAndroid/data\n*.tmp");
+        assertTrue(matcher.excludesEntry("a/.hidden"));
+        assertTrue(matcher.excludesEntry("Android/data"));
+        assertTrue(matcher.excludesEntry("x/y.tmp"));
+        // Only excluded through a folder above, which a walk never enters.
+        assertFalse(matcher.excludesEntry("a/.hidden/1.jpg"));
+        assertFalse(matcher.excludesEntry("Android/data/com.x"));
+        assertFalse(matcher.excludesEntry("y.tmp/1.jpg"));
+        assertTrue(matcher.excludes("a/.hidden/1.jpg"));
+        assertTrue(matcher.excludes("Android/data/com.x"));
+        assertTrue(matcher.excludes("y.tmp/1.jpg"));
+        assertFalse(matcher.excludesEntry(""));
+    }
+
+    @Test
+    public void blankLinesAndCommentsAreIgnored() {
+        ExclusionMatcher matcher =
+                ExclusionMatcher.compile("\n# comment\n  .trash  \n\n/\n");
+        assertEquals(".trash\n", matcher.getPatterns());
+        assertFalse(matcher.isEmpty());
+        assertIncluded(matcher, "# comment", "");
+
+        assertTrue(ExclusionMatcher.compile("# only\n\n").isEmpty());
+        assertTrue(ExclusionMatcher.compile(null).isEmpty());
+        assertTrue(ExclusionMatcher.NONE.isEmpty());
+        assertIncluded(ExclusionMatcher.NONE, "a", "a/b");
+    }
+}
@@ -0,0 +1,104 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains tests of the in-memory copy of media database rows.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MediaSnapshotTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    static List<String> unseen(MediaSnapshot snapshot) {
+        final List<String> paths = new ArrayList<String>();
+        snapshot.forEachUnseen(new MediaSnapshot.UnseenRowHandler() {
+            public void onUnseenRow(long id, String data, long dateModified) {
+                paths.add(id + " " + data);
+            }
+        });
+        return paths;
+    }
+
+    @Test
+    public void marksRowsFromManyThreads() throws Exception {
+        final MediaSnapshot snapshot = new MediaSnapshot();
+        final int count = 50000;
+        for (int i = 0; i < count; i++) {
+            snapshot.addRow(i, String.format("/nowhere/%06d", i), i);
+        }
+        snapshot.finishLoading();
+        final AtomicInteger wrong = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int first = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    // Every other row, each marked by two threads.
+                    for (int i = first % 2 * 2; i < count; i += 4) {
+                        if (snapshot.markSeen(String.format("/nowhere/%06d",
+                                                            i)) != i) {
+                            wrong.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, wrong.get());
+        List<String> unseen = unseen(snapshot);
+        assertEquals(count / 2, unseen.size());
+        assertEquals("1 /nowhere/000001", unseen.get(0));
+        assertEquals(-1, snapshot.markSeen("/nowhere/x"));
+    }
+
+    @Test
+    public void canonicalizesRows() throws Exception {
+        File real = mFolder.newFolder("storage");
+        File link = new File(mFolder.getRoot(), "sdcard");
+        Files.createSymbolicLink(link.toPath(), real.toPath());
+        String realPath = real.getCanonicalPath();
+
+        MediaSnapshot snapshot = new MediaSnapshot();
+        snapshot.addRow(1, link.getPath() + "/a.jpg", 10);
+        snapshot.addRow(2, link.getPath() + "/b.jpg", 20);
+        // Out of order once canonicalized.
+        snapshot.addRow(3, realPath + "/0.jpg", 30);
+        snapshot.finishLoading();
+
+        assertEquals(10, snapshot.markSeen(realPath + "/a.jpg"));
+        assertEquals(30, snapshot.markSeen(realPath + "/0.jpg"));
+        assertEquals(-1, snapshot.markSeen(link.getPath() + "/b.jpg"));
+        assertEquals(Arrays.asList("2 " + realPath + "/b.jpg"),
+                     unseen(snapshot));
+    }
+}
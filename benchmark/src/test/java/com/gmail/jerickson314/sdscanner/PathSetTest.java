@@ -0,0 +1,250 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains tests of the compact sorted path set.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class PathSetTest {
+
+    // Written independently of PathSet.comparePaths, from code points.
+    static final Comparator<String> CODE_POINT_ORDER =
+            new Comparator<String>() {
+        public int compare(String a, String b) {
+            int i = 0;
+            int j = 0;
+            while (i < a.length() && j < b.length()) {
+                int x = a.codePointAt(i);
+                int y = b.codePointAt(j);
+                if (x != y) {
+                    return x < y ? -1 : 1;
+                }
+                i += Character.charCount(x);
+                j += Character.charCount(y);
+            }
+            return (a.length() - i) - (b.length() - j);
+        }
+    };
+
+    // Short names from a small alphabet, so paths collide and share long
+    // prefixes, with characters either side of the surrogate range.
+    static final String[] NAMES = {
+        "a", "ab", "abc", "b", "a.jpg", "a b", "\u00E9", "\uE000",
+        "\uFFFD", "\uD83D\uDCF7", "\uD83D\uDCF7x", "\uD800\uDC00"
+    };
+
+    static String randomPath(Random random) {
+        StringBuilder path = new StringBuilder("/storage/emulated/0");
+        int depth = 1 + random.nextInt(4);
+        for (int i = 0; i < depth; i++) {
+            path.append('/').append(NAMES[random.nextInt(NAMES.length)]);
+        }
+        return path.toString();
+    }
+
+    static void assertSameOrder(TreeSet<String> expected, PathSet actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(new ArrayList<String>(expected),
+                     new ArrayList<String>(actual));
+    }
+
+    @Test
+    public void randomOperationsMatchTreeSet() {
+        Random random = new Random(42);
+        TreeSet<String> expected = new TreeSet<String>(CODE_POINT_ORDER);
+        PathSet actual = new PathSet();
+        for (int i = 0; i < 200000; i++) {
+            String path = randomPath(random);
+            int op = random.nextInt(10);
+            if (op < 6) {
+                assertEquals(path, expected.add(path), actual.add(path));
+            }
+            else if (op < 9) {
+                assertEquals(path, expected.remove(path),
+                             actual.remove(path));
+            }
+            else {
+                assertEquals(path, expected.contains(path),
+                             actual.contains(path));
+            }
+            assertEquals(expected.size(), actual.size());
+            if (i % 50000 == 49999) {
+                assertSameOrder(expected, actual);
+            }
+        }
+        assertSameOrder(expected, actual);
+    }
+
+    @Test
+    public void manyRunsMatchTreeSet() {
+        // Distinct paths, enough to code several runs before compacting.
+        Random random = new Random(7);
+        TreeSet<String> expected = new TreeSet<String>(CODE_POINT_ORDER);
+        PathSet actual = new PathSet();
+        for (int i = 0; i < PathSet.MAX_PENDING * 11 + 5; i++) {
+            String path = "/sdcard/" + random.nextInt(1000) + "/" +
+                          NAMES[random.nextInt(NAMES.length)] + i;
+            assertEquals(expected.add(path), actual.add(path));
+        }
+        ArrayList<String> all = new ArrayList<String>(expected);
+        for (int i = 0; i < all.size(); i += 3) {
+            assertTrue(actual.remove(all.get(i)));
+            expected.remove(all.get(i));
+        }
+        for (int i = 0; i < all.size(); i += 9) {
+            assertFalse(actual.contains(all.get(i)));
+            assertTrue(actual.add(all.get(i)));
+            expected.add(all.get(i));
+        }
+        for (String path : all) {
+            assertEquals(expected.contains(path), actual.contains(path));
+        }
+        assertSameOrder(expected, actual);
+    }
+
+    @Test
+    public void surrogatePairsSortByCodePoint() {
+        PathSet set = new PathSet();
+        set.addAll(Arrays.asList("/x/\uD83D\uDCF7", "/x/\uFFFD",
+                                 "/x/\uE000", "/x/z"));
+        // String.compareTo() would put the surrogate pair first.
+        assertEquals(Arrays.asList("/x/z", "/x/\uE000", "/x/\uFFFD",
+                                   "/x/\uD83D\uDCF7"),
+                     new ArrayList<String>(set));
+        assertTrue(PathSet.comparePaths("\uD83D\uDCF7", "\uFFFD") > 0);
+        assertTrue(PathSet.comparePaths("\uD7FF", "\uD800\uDC00") < 0);
+    }
+
+    @Test
+    public void sharedPrefixesAcrossBlocks() {
+        // Each path extends the one before, then the prefixes shrink again,
+        // across several blocks.
+        TreeSet<String> expected = new TreeSet<String>(CODE_POINT_ORDER);
+        StringBuilder path = new StringBuilder("/");
+        for (int i = 0; i < PathSet.BLOCK_SIZE * 3 + 1; i++) {
+            path.append((char) ('a' + i % 26));
+            expected.add(path.toString());
+            expected.add(path.toString() + "/");
+            expected.add("/" + (char) ('a' + i % 26) + i);
+        }
+        expected.add("/");
+        expected.add("");
+        PathSet set = new PathSet();
+        for (String p : expected.descendingSet()) {
+            set.add(p);
+        }
+        assertSameOrder(expected, set);
+        int index = 0;
+        for (String p : expected) {
+            assertEquals(p, set.get(index));
+            assertEquals(index, set.indexOf(p));
+            index++;
+        }
+        assertEquals(-1, set.indexOf("/a/b"));
+        assertEquals(-1, set.indexOf("/zzz"));
+
+        PathSet.Lookup lookup = set.lookup();
+        set.add("/a/b");
+        index = 0;
+        for (String p : expected) {
+            assertEquals(index, lookup.indexOf(p));
+            index++;
+        }
+        assertEquals(-1, lookup.indexOf("/a/b"));
+    }
+
+    @Test
+    public void removePendingAndCodedEntries() {
+        PathSet set = new PathSet();
+        set.add("/sdcard/coded/a");
+        set.add("/sdcard/coded/b");
+        set.compact();
+        set.add("/sdcard/pending/a");
+
+        assertTrue(set.remove("/sdcard/pending/a"));
+        assertFalse(set.remove("/sdcard/pending/a"));
+        assertTrue(set.remove("/sdcard/coded/a"));
+        assertFalse(set.remove("/sdcard/coded/a"));
+        assertFalse(set.remove("/sdcard/never"));
+        assertEquals(1, set.size());
+        assertFalse(set.contains("/sdcard/coded/a"));
+
+        // A removed coded entry comes back on being added again.
+        assertTrue(set.add("/sdcard/coded/a"));
+        assertFalse(set.add("/sdcard/coded/a"));
+        assertEquals(Arrays.asList("/sdcard/coded/a", "/sdcard/coded/b"),
+                     new ArrayList<String>(set));
+    }
+
+    @Test
+    public void iteratorSeesSnapshot() {
+        PathSet set = new PathSet();
+        set.add("/a");
+        set.add("/c");
+        Iterator<String> it = set.iterator();
+        set.add("/b");
+        set.remove("/c");
+        List<String> seen = new ArrayList<String>();
+        while (it.hasNext()) {
+            seen.add(it.next());
+        }
+        assertEquals(Arrays.asList("/a", "/c"), seen);
+        assertEquals(Arrays.asList("/a", "/b"), new ArrayList<String>(set));
+    }
+
+    @Test
+    public void iteratorRemove() {
+        PathSet set = new PathSet();
+        for (int i = 0; i < 100; i++) {
+            set.add("/sdcard/" + i);
+        }
+        for (Iterator<String> it = set.iterator(); it.hasNext(); ) {
+            if (it.next().endsWith("7")) {
+                it.remove();
+            }
+        }
+        assertEquals(90, set.size());
+        assertFalse(set.contains("/sdcard/17"));
+        assertTrue(set.contains("/sdcard/18"));
+    }
+
+    @Test
+    public void rejectsOverlongPath() {
+        char[] name = new char[Character.MAX_VALUE + 1];
+        Arrays.fill(name, 'a');
+        try {
+            new PathSet().add(new String(name));
+            fail();
+        }
+        catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains tests of the journal used to resume interrupted
+ * scans.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ScanJournalTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    // Shared prefixes that grow, shrink to nothing and match whole paths,
+    // and paths longer than the previous one's suffix.
+    static final List<String> PATHS = Arrays.asList(
+            "/storage/emulated/0/DCIM/a.jpg",
+            "/storage/emulated/0/DCIM/a.jpg.bak",
+            "/storage/emulated/0/DCIM/ab.jpg",
+            "/storage/emulated/0/Music/x/y/z.mp3",
+            "/storage/emulated/0/Music/x/z.mp3",
+            "/storage/1234-5678/\u00E9t\u00E9.mp3",
+            "/storage/1234-5678/\u00E9t\u00E9/\uD83D\uDCF7.jpg",
+            "/x");
+
+    static ScanParameters parameters() {
+        ArrayList<File> roots = new ArrayList<File>();
+        roots.add(new File("/storage/emulated/0"));
+        roots.add(new File("/storage/1234-5678"));
+        return new ScanParameters(roots, false);
+    }
+
+    File writeJournal(int[] completed, boolean finishPaths)
+            throws IOException {
+        File file = mFolder.newFile();
+        ScanJournal journal = new ScanJournal(file, parameters());
+        journal.addPaths(PATHS.iterator());
+        if (finishPaths) {
+            journal.finishPaths();
+            assertTrue(journal.isResumable());
+        }
+        for (int index : completed) {
+            journal.markCompleted(index);
+        }
+        journal.close();
+        return file;
+    }
+
+    static List<String> remaining(ScanJournal.Resume resume) {
+        return new ArrayList<String>(resume.getRemaining());
+    }
+
+    static List<String> pathsExcept(int... completed) {
+        TreeSet<String> paths = new TreeSet<String>(PathSet.PATH_ORDER);
+        paths.addAll(PATHS);
+        for (int index : completed) {
+            paths.remove(PATHS.get(index));
+        }
+        return new ArrayList<String>(paths);
+    }
+
+    @Test
+    public void roundTripsPathsAndSettings() throws IOException {
+        int[] completed = {0, 3, 7};
+        ScanJournal.Resume resume =
+                ScanJournal.load(writeJournal(completed, true));
+        assertEquals(parameters().getRoots(), resume.getRoots());
+        assertFalse(resume.getRestrictDbUpdate());
+        assertEquals(pathsExcept(completed), remaining(resume));
+    }
+
+    @Test
+    public void incompletePathListIsNotResumable() throws IOException {
+        assertNull(ScanJournal.load(writeJournal(new int[] {1}, false)));
+    }
+
+    @Test
+    public void truncatedJournalKeepsCompletedRecords() throws IOException {
+        int[] completed = {1, 2, 5, 6};
+        File file = writeJournal(completed, true);
+        byte[] whole = Files.readAllBytes(file.toPath());
+        // Each completion record is a tag and an int.
+        int pathsEnd = whole.length - completed.length * 5;
+        File empty = mFolder.newFile();
+        new ScanJournal(empty, parameters()).close();
+        long headerEnd = empty.length();
+        File torn = mFolder.newFile();
+        for (int length = 0; length < whole.length; length++) {
+            FileOutputStream out = new FileOutputStream(torn);
+            out.write(whole, 0, length);
+            out.close();
+            ScanJournal.Resume resume;
+            try {
+                resume = ScanJournal.load(torn);
+            }
+            catch (IOException ex) {
+                // Only a torn header is unreadable.
+                assertTrue("length " + length, length < headerEnd);
+                continue;
+            }
+            if (length < pathsEnd) {
+                assertNull("length " + length, resume);
+                continue;
+            }
+            assertNotNull("length " + length, resume);
+            int wholeRecords = (length - pathsEnd) / 5;
+            assertEquals("length " + length,
+                         pathsExcept(Arrays.copyOf(completed, wholeRecords)),
+                         remaining(resume));
+        }
+    }
+
+    @Test
+    public void unknownTagEndsRecords() throws IOException {
+        File file = writeJournal(new int[] {0}, true);
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.seek(out.length());
+        out.writeByte(99);
+        out.writeByte(2);
+        out.writeInt(1);
+        out.close();
+        assertEquals(pathsExcept(0), remaining(ScanJournal.load(file)));
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        File file = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] {'S', 'D', 'S', 'R', 0, 0, 0, 1});
+        out.close();
+        try {
+            ScanJournal.load(file);
+            fail();
+        }
+        catch (IOException expected) {
+        }
+    }
+}
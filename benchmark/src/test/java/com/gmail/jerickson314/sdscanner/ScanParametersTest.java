@@ -0,0 +1,93 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains tests of which paths a scan's exclusions cover.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class ScanParametersTest {
+
+    static ScanParameters scan(String root, String patterns) {
+        ScanParameters params = new ScanParameters(new File(root), false);
+        params.setExclusions(ExclusionMatcher.compile(patterns));
+        return params;
+    }
+
+    @Test
+    public void patternsAreRelativeToRoot() {
+        ScanParameters params = scan("/sdcard", "/DCIM/.trash\nAndroid/data");
+        assertTrue(params.isExcluded("/sdcard/DCIM/.trash"));
+        assertTrue(params.isExcluded("/sdcard/DCIM/.trash/1.jpg"));
+        assertTrue(params.isExcluded("/sdcard/Android/data/x"));
+        assertFalse(params.isExcluded("/sdcard/DCIM"));
+        assertFalse(params.isExcluded("/sdcard/Music/DCIM/.trash"));
+        assertFalse(params.isExcluded("/sdcard"));
+    }
+
+    @Test
+    public void rootEndingInSeparatorKeepsFirstCharacter() {
+        ScanParameters params = scan("/", "/sdcard/Android\nDCIM/.trash");
+        assertTrue(params.isExcluded("/sdcard/Android"));
+        assertTrue(params.isExcluded("/sdcard/Android/data"));
+        assertTrue(params.isExcluded("/sdcard/DCIM/.trash/1.jpg"));
+        assertFalse(params.isExcluded("/sdcard"));
+        assertFalse(params.isExcluded("/mnt/sdcard/Android"));
+        assertFalse(params.isExcluded("/"));
+    }
+
+    @Test
+    public void subtreeMatchesFromScanRoot() {
+        ScanParameters params = scan("/sdcard", "/DCIM/.trash\nAndroid/data");
+
+        ScanParameters android = params.forSubtree(new File("/sdcard/Android"));
+        assertTrue(android.isExcluded("/sdcard/Android/data"));
+        assertTrue(android.isExcluded("/sdcard/Android/data/x"));
+        assertTrue(android.isExcludedEntry("/sdcard/Android/data"));
+        assertFalse(android.isExcluded("/sdcard/Android/obb"));
+
+        ScanParameters dcim = params.forSubtree(new File("/sdcard/DCIM"));
+        assertTrue(dcim.isExcluded("/sdcard/DCIM/.trash"));
+        assertTrue(dcim.isExcludedEntry("/sdcard/DCIM/.trash"));
+        assertFalse(dcim.isExcluded("/sdcard/DCIM/Camera"));
+
+        // A subtree of a subtree still matches from the scan root.
+        ScanParameters deeper =
+                android.forSubtree(new File("/sdcard/Android/data"));
+        assertTrue(deeper.isExcluded("/sdcard/Android/data/x"));
+    }
+
+    @Test
+    public void subtreeOfMultiVolumeScanUsesItsVolume() {
+        ArrayList<File> roots = new ArrayList<File>();
+        roots.add(new File("/storage/emulated/0"));
+        roots.add(new File("/storage/1234-5678"));
+        ScanParameters params = new ScanParameters(roots, false);
+        params.setExclusions(ExclusionMatcher.compile("/DCIM/.trash"));
+
+        ScanParameters subtree =
+                params.forSubtree(new File("/storage/1234-5678/DCIM"));
+        assertTrue(subtree.isExcluded("/storage/1234-5678/DCIM/.trash"));
+        assertFalse(subtree.isExcluded("/storage/1234-5678/DCIM/a"));
+    }
+}
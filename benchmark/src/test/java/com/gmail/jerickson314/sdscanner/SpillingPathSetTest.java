@@ -0,0 +1,193 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains tests of the file list that spills to disk.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpillingPathSetTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    File mDirectory;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(mFolder.getRoot(), "spill");
+    }
+
+    static List<String> contents(PathList list) {
+        List<String> paths = new ArrayList<String>();
+        Iterator<String> iterator = list.sortedIterator();
+        while (iterator.hasNext()) {
+            paths.add(iterator.next());
+        }
+        return paths;
+    }
+
+    int fileCount() {
+        String[] names = mDirectory.list();
+        return names == null ? 0 : names.length;
+    }
+
+    @Test
+    public void staysInMemoryBelowThreshold() {
+        SpillingPathSet set = new SpillingPathSet(mDirectory, 10);
+        set.addPath("/b");
+        set.addPath("/a");
+        set.addPath("/b");
+        set.removePath("/c");
+        assertFalse(set.hasSpilled());
+        assertEquals(2, set.size());
+        assertEquals(Arrays.asList("/a", "/b"), contents(set));
+        assertEquals(0, fileCount());
+    }
+
+    @Test
+    public void mergesManyRunsInOrder() {
+        // Enough runs to need more than one merge pass.
+        SpillingPathSet set = new SpillingPathSet(mDirectory, 50);
+        TreeSet<String> expected = new TreeSet<String>(PathSet.PATH_ORDER);
+        Random random = new Random(3);
+        for (int i = 0; i < 5000; i++) {
+            String path = "/sdcard/" + random.nextInt(100) + "/" +
+                          random.nextInt(1000) + ".jpg";
+            set.addPath(path);
+            expected.add(path);
+        }
+        assertTrue(set.getRunCount() > 32);
+        assertEquals(expected.size(), set.size());
+        assertEquals(new ArrayList<String>(expected), contents(set));
+        // Merged into a single file, which later spills build on.
+        assertEquals(1, fileCount());
+        set.addPath("/a");
+        expected.add("/a");
+        assertEquals(new ArrayList<String>(expected), contents(set));
+    }
+
+    @Test
+    public void newestRunDecidesAcrossRuns() {
+        SpillingPathSet set = new SpillingPathSet(mDirectory, 4);
+        TreeSet<String> expected = new TreeSet<String>(PathSet.PATH_ORDER);
+        Random random = new Random(11);
+        for (int i = 0; i < 20000; i++) {
+            String path = "/s/" + random.nextInt(300);
+            if (random.nextInt(3) == 0) {
+                set.removePath(path);
+                expected.remove(path);
+            }
+            else {
+                set.addPath(path);
+                expected.add(path);
+            }
+            if (i % 5000 == 4999) {
+                assertEquals(new ArrayList<String>(expected), contents(set));
+                assertEquals(expected.size(), set.size());
+            }
+        }
+        assertTrue(set.hasSpilled());
+        assertEquals(new ArrayList<String>(expected), contents(set));
+    }
+
+    @Test
+    public void removesPathSpilledEarlier() {
+        SpillingPathSet set = new SpillingPathSet(mDirectory, 2);
+        set.addPath("/a");
+        set.addPath("/b");
+        assertTrue(set.hasSpilled());
+        set.removePath("/a");
+        set.addPath("/c");
+        assertEquals(Arrays.asList("/b", "/c"), contents(set));
+        // Back again after being removed from an older run.
+        set.addPath("/a");
+        assertEquals(Arrays.asList("/a", "/b", "/c"), contents(set));
+        set.removePath("/b");
+        set.removePath("/c");
+        assertEquals(Arrays.asList("/a"), contents(set));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void iteratorSeesSnapshot() {
+        SpillingPathSet set = new SpillingPathSet(mDirectory, 2);
+        set.addPath("/a");
+        set.addPath("/b");
+        Iterator<String> iterator = set.sortedIterator();
+        set.removePath("/a");
+        set.addPath("/c");
+        set.addPath("/d");
+        List<String> seen = new ArrayList<String>();
+        while (iterator.hasNext()) {
+            seen.add(iterator.next());
+        }
+        assertEquals(Arrays.asList("/a", "/b"), seen);
+        assertEquals(Arrays.asList("/b", "/c", "/d"), contents(set));
+    }
+
+    @Test
+    public void clearDeletesFiles() {
+        SpillingPathSet set = new SpillingPathSet(mDirectory, 3);
+        for (int i = 0; i < 30; i++) {
+            set.addPath("/" + i);
+        }
+        assertTrue(fileCount() > 0);
+        set.clear();
+        assertEquals(0, fileCount());
+        assertFalse(set.hasSpilled());
+        assertEquals(0, set.size());
+        assertTrue(contents(set).isEmpty());
+    }
+
+    @Test
+    public void deleteLeftoversEmptiesDirectory() throws IOException {
+        SpillingPathSet abandoned = new SpillingPathSet(mDirectory, 3);
+        for (int i = 0; i < 30; i++) {
+            abandoned.addPath("/" + i);
+        }
+        assertTrue(fileCount() > 0);
+        SpillingPathSet.deleteLeftovers(mDirectory);
+        assertEquals(0, fileCount());
+        // Also fine when there was never a directory.
+        SpillingPathSet.deleteLeftovers(new File(mFolder.getRoot(), "none"));
+
+        // A new set starts clean in the same directory.
+        SpillingPathSet set = new SpillingPathSet(mDirectory, 3);
+        for (int i = 0; i < 10; i++) {
+            set.addPath("/x" + i);
+        }
+        assertEquals(10, set.size());
+        assertEquals("/x0", contents(set).get(0));
+    }
+}
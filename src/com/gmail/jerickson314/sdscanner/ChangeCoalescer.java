@@ -0,0 +1,218 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the debouncing and coalescing of file change events
+ * used by watch mode.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Collects change events per directory and releases them once the
+ * directory has been quiet for a while, so a file written in many chunks
+ * or a burst of copies into one folder turn into a single batch.  A
+ * directory that keeps changing is still released after a maximum delay.
+ *
+ * Events name either a file, which is rescanned on its own, or a whole
+ * tree, for folders that appeared, disappeared or moved, where everything
+ * below has to be reconciled.  A directory with too many changed files is
+ * treated as a tree too.
+ *
+ * Times are passed in by the caller, so this runs the same under any
+ * clock.  addEvent() may be called from any thread.
+ */
+public class ChangeCoalescer {
+
+    /**
+     * Callback interface for released changes.
+     */
+    static interface Listener {
+        // Changed, created or deleted files, all directly in directory.
+        void onFilesChanged(String directory, ArrayList<String> paths);
+        // Everything at or below path may have changed.
+        void onTreeChanged(String path);
+    }
+
+    static final long DEFAULT_QUIET_MILLIS = 2000;
+    static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+    static final int DEFAULT_MAX_FILES_PER_DIRECTORY = 256;
+
+    static class Pending {
+        long mFirstEvent;
+        long mLastEvent;
+        HashSet<String> mNames = new HashSet<String>();
+        HashSet<String> mTrees = new HashSet<String>();
+        // Set once the directory itself needs reconciling.
+        boolean mWholeDirectory = false;
+    }
+
+    long mQuietMillis;
+    long mMaxDelayMillis;
+    int mMaxFilesPerDirectory;
+
+    HashMap<String, Pending> mPending = new HashMap<String, Pending>();
+
+    public ChangeCoalescer(long quietMillis, long maxDelayMillis,
+                           int maxFilesPerDirectory) {
+        mQuietMillis = quietMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mMaxFilesPerDirectory = maxFilesPerDirectory;
+    }
+
+    public ChangeCoalescer() {
+        this(DEFAULT_QUIET_MILLIS, DEFAULT_MAX_DELAY_MILLIS,
+             DEFAULT_MAX_FILES_PER_DIRECTORY);
+    }
+
+    /**
+     * Records a change to name in directory.
+     *
+     * @param name  Entry that changed, or null if directory itself did.
+     * @param tree  True if the entry is a folder that appeared, disappeared
+     *              or moved.
+     * @return True if nothing was pending before, so the caller knows to
+     *         schedule a flush.
+     */
+    public synchronized boolean addEvent(String directory, String name,
+                                         boolean tree, long now) {
+        boolean wasEmpty = mPending.isEmpty();
+        Pending pending = mPending.get(directory);
+        if (pending == null) {
+            pending = new Pending();
+            pending.mFirstEvent = now;
+            mPending.put(directory, pending);
+        }
+        pending.mLastEvent = now;
+        if (pending.mWholeDirectory) {
+            return wasEmpty;
+        }
+        if (name == null) {
+            pending.mWholeDirectory = true;
+        }
+        else if (tree) {
+            pending.mTrees.add(name);
+        }
+        else {
+            pending.mNames.add(name);
+            if (pending.mNames.size() > mMaxFilesPerDirectory) {
+                pending.mWholeDirectory = true;
+            }
+        }
+        if (pending.mWholeDirectory) {
+            pending.mNames.clear();
+            pending.mTrees.clear();
+        }
+        return wasEmpty;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mPending.isEmpty();
+    }
+
+    private boolean isReady(Pending pending, long now) {
+        return now - pending.mLastEvent >= mQuietMillis ||
+               now - pending.mFirstEvent >= mMaxDelayMillis;
+    }
+
+    private static boolean isBelowAny(String path, ArrayList<String> trees) {
+        for (int i = 0; i < trees.size(); i++) {
+            String tree = trees.get(i);
+            if (path.equals(tree) || (path.startsWith(tree) &&
+                    path.charAt(tree.length()) == File.separatorChar)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Releases every directory that is ready at now.  Files in a tree
+     * released in the same call are left to the tree.
+     *
+     * @return Time at which the next directory will be ready, or -1 if
+     *         nothing is pending.
+     */
+    public long flush(long now, Listener listener) {
+        HashMap<String, Pending> ready = new HashMap<String, Pending>();
+        long nextDeadline = -1;
+        synchronized (this) {
+            Iterator<Map.Entry<String, Pending>> iterator =
+                    mPending.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Pending> entry = iterator.next();
+                Pending pending = entry.getValue();
+                if (isReady(pending, now)) {
+                    ready.put(entry.getKey(), pending);
+                    iterator.remove();
+                }
+                else {
+                    long deadline = Math.min(
+                            pending.mLastEvent + mQuietMillis,
+                            pending.mFirstEvent + mMaxDelayMillis);
+                    if (nextDeadline < 0 || deadline < nextDeadline) {
+                        nextDeadline = deadline;
+                    }
+                }
+            }
+        }
+        // Listener calls happen outside the lock, so events keep flowing.
+        ArrayList<String> trees = new ArrayList<String>();
+        for (Map.Entry<String, Pending> entry : ready.entrySet()) {
+            Pending pending = entry.getValue();
+            if (pending.mWholeDirectory) {
+                trees.add(entry.getKey());
+            }
+            else {
+                for (String name : pending.mTrees) {
+                    trees.add(new File(entry.getKey(), name).getPath());
+                }
+            }
+        }
+        // Ancestors sort before their descendants, so nested trees can be
+        // dropped in one pass; they are covered by the ancestor.
+        Collections.sort(trees, PathSet.PATH_ORDER);
+        ArrayList<String> releasedTrees = new ArrayList<String>();
+        for (String tree : trees) {
+            if (!isBelowAny(tree, releasedTrees)) {
+                releasedTrees.add(tree);
+            }
+        }
+        for (String tree : releasedTrees) {
+            listener.onTreeChanged(tree);
+        }
+        for (Map.Entry<String, Pending> entry : ready.entrySet()) {
+            String directory = entry.getKey();
+            Pending pending = entry.getValue();
+            if (pending.mWholeDirectory || pending.mNames.isEmpty() ||
+                    isBelowAny(directory, releasedTrees)) {
+                continue;
+            }
+            ArrayList<String> paths = new ArrayList<String>();
+            for (String name : pending.mNames) {
+                paths.add(new File(directory, name).getPath());
+            }
+            listener.onFilesChanged(directory, paths);
+        }
+        return nextDeadline;
+    }
+}
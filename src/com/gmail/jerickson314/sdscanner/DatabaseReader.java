@@ -0,0 +1,217 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the paged read of the media database that feeds each
+ * row to the scan's reconciliation.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Reads media database rows in _data order, a page at a time, handing each
+ * to a RowHandler.  In restricted mode only rows under the scan path are
+ * requested.
+ *
+ * The reader remembers the key of the last row it handed over, so after a
+ * failure another read() carries on from there with the same RowHandler
+ * instead of starting over.  readWithRetries() does that with a backoff.
+ */
+public class DatabaseReader {
+
+    /**
+     * Callback interface used to report progress through the rows.
+     */
+    static interface ProgressListener {
+        void onProgress(String data, int progress);
+    }
+
+    /**
+     * Callback interface used to report a failed attempt before retrying.
+     */
+    static interface RetryListener {
+        void onRetry(int attempt, long delayMillis, Exception ex);
+    }
+
+    // Rows fetched per media database query.
+    static final int PAGE_SIZE = 1000;
+
+    // Backoff before the first retry, doubled for each one after.
+    static final long BASE_BACKOFF_MILLIS = 500;
+    static final long MAX_BACKOFF_MILLIS = 8000;
+
+    MediaIndex mIndex;
+    ScanParameters mScanParameters;
+    ScanMetrics mMetrics = new ScanMetrics();
+    Random mRandom = new Random();
+
+    // Position, kept across attempts.  Keys are (_data, _id).
+    String mLastData = "";
+    long mLastId = 0;
+    int mRowsRead = 0;
+    int mTotalSize = -1;
+    int mReportFreq = 0;
+    // Used to calibrate reporting frequency
+    long mStartTime = System.nanoTime();
+    int mAttempts = 0;
+    volatile boolean mCancelled = false;
+
+    public DatabaseReader(MediaIndex index, ScanParameters scanParameters) {
+        mIndex = index;
+        mScanParameters = scanParameters;
+    }
+
+    public void setMetrics(ScanMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Stops the read after the current row, closing the cursor.  May be
+     * called from any thread.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    public int getRowsRead() {
+        return mRowsRead;
+    }
+
+    /**
+     * Reads the rest of the rows, from after the last one handed over.
+     */
+    public void read(MediaIndex.RowHandler rowHandler,
+                     ProgressListener listener) throws IOException {
+        ScopeMatcher scope = mScanParameters.getRestrictDbUpdate() ?
+                mScanParameters.getScopeMatcher() : null;
+        if (mTotalSize < 0) {
+            mTotalSize = mIndex.countRows(scope);
+        }
+        boolean morePages = true;
+        while (morePages && !mCancelled) {
+            // Each page picks up after the last row of the one before, so
+            // no single cursor window has to be refilled across the table.
+            MediaIndex.Rows rows =
+                    mIndex.queryPage(scope, mLastData, mLastId, PAGE_SIZE);
+            int pageItems = 0;
+            try {
+                while (!mCancelled && rows.moveToNext()) {
+                    mRowsRead++;
+                    pageItems++;
+                    // Moved past before handling, so a row that breaks the
+                    // handler is not retried forever.
+                    mLastId = rows.getId();
+                    mLastData = rows.getData();
+                    // Excluded files are left as they are in the
+                    // database, so never statted or submitted.
+                    try {
+                        if (!mScanParameters.isExcluded(mLastData)) {
+                            rowHandler.addRow(mLastId, mLastData,
+                                              rows.getDateModified());
+                        }
+                    }
+                    catch (IOException ex) {
+                        // Just ignore it for now.
+                    }
+                    if (mReportFreq == 0) {
+                        // Calibration phase
+                        if (System.nanoTime() - mStartTime > 25000000L) {
+                            mReportFreq = mRowsRead + 1;
+                        }
+                    }
+                    else if (mRowsRead % mReportFreq == 0 && mTotalSize > 0) {
+                        listener.onProgress(mLastData,
+                                Math.min(100, (100 * mRowsRead) / mTotalSize));
+                    }
+                }
+                morePages = pageItems == PAGE_SIZE;
+            }
+            finally {
+                // Don't need the cursor any more.
+                rows.close();
+                mMetrics.add(ScanMetrics.Counter.DB_ROWS_READ, pageItems);
+            }
+        }
+    }
+
+    // Exponential, with the upper half jittered so retries from apps all
+    // hitting the same busy provider spread out.
+    long backoffMillis(int attempt) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS,
+                                BASE_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+        long half = ceiling / 2;
+        return half + (long) (mRandom.nextDouble() * (ceiling - half));
+    }
+
+    /**
+     * Reads every row, retrying failed attempts.  Each attempt resumes
+     * where the last one failed, and gives up only after maxAttempts in a
+     * row fail without reading a single row.  Any exception counts as a
+     * failure, as providers throw all sorts when busy.
+     *
+     * @return True if every row was read, false if the reader gave up or
+     *         was cancelled.
+     */
+    public boolean readWithRetries(MediaIndex.RowHandler rowHandler,
+                                   ProgressListener listener, int maxAttempts,
+                                   RetryListener retryListener)
+            throws InterruptedException {
+        // Attempts in a row that got nowhere; sets the backoff too.
+        int stalled = 0;
+        while (true) {
+            mAttempts++;
+            int rowsBefore = mRowsRead;
+            long start = System.nanoTime();
+            Exception failure = null;
+            try {
+                read(rowHandler, listener);
+            }
+            catch (Exception ex) {
+                failure = ex;
+            }
+            if (mRowsRead > rowsBefore) {
+                stalled = 0;
+            }
+            stalled++;
+            boolean giveUp = failure != null && stalled >= maxAttempts;
+            long backoff = failure == null || giveUp ?
+                    0 : backoffMillis(stalled);
+            mMetrics.recordDatabaseAttempt(mRowsRead - rowsBefore,
+                    (System.nanoTime() - start) / 1000000L, failure == null,
+                    backoff);
+            if (mCancelled) {
+                return false;
+            }
+            if (failure == null) {
+                return true;
+            }
+            if (giveUp) {
+                return false;
+            }
+            retryListener.onRetry(mAttempts, backoff, failure);
+            Thread.sleep(backoff);
+        }
+    }
+}
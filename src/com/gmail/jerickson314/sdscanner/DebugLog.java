@@ -0,0 +1,70 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import android.app.Activity;
+
+/**
+ * Debug messages kept in a ring buffer, so only the most recent CAPACITY
+ * messages are retained.  Each message has a sequence number, which lets
+ * the view append just the messages it has not shown yet.
+ */
+public class DebugLog {
+    static final int CAPACITY = 200;
+
+    UIStringGenerator[] mMessages = new UIStringGenerator[CAPACITY];
+    // Sequence number the next message will get; also the total added.
+    long mNextSequence = 0;
+
+    public void add(UIStringGenerator message) {
+        mMessages[(int) (mNextSequence % CAPACITY)] = message;
+        mNextSequence++;
+    }
+
+    public long getNextSequence() {
+        return mNextSequence;
+    }
+
+    public long getFirstRetainedSequence() {
+        return Math.max(0, mNextSequence - CAPACITY);
+    }
+
+    /**
+     * Renders retained messages from sequence number fromSequence onwards.
+     */
+    public String render(Activity activity, long fromSequence) {
+        StringBuilder toReturn = new StringBuilder();
+        long sequence = Math.max(fromSequence, getFirstRetainedSequence());
+        for (; sequence < mNextSequence; sequence++) {
+            toReturn.append(
+                    mMessages[(int) (sequence % CAPACITY)].toString(activity));
+        }
+        return toReturn.toString();
+    }
+
+    /**
+     * Renders all retained messages, preceded by a count of those dropped.
+     */
+    public String renderAll(Activity activity) {
+        long suppressed = getFirstRetainedSequence();
+        if (suppressed == 0) {
+            return render(activity, 0);
+        }
+        return activity.getString(R.string.debug_suppressed_label) + " " +
+               suppressed + "\n" + render(activity, 0);
+    }
+}
@@ -0,0 +1,209 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the recursive set of file observers behind watch
+ * mode.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import android.os.FileObserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Watches a folder tree with one FileObserver (one inotify watch) per
+ * folder, since inotify is not recursive.  Watches are limited to a cap,
+ * well under the kernel's per-user limit; subtrees left over once the cap
+ * is reached are reported by getUnwatchedTrees() so they can be rescanned
+ * periodically instead.  Folders holding a .nomedia file are not watched,
+ * as scans never look inside them.
+ */
+public class DirectoryWatcher {
+
+    /**
+     * Callback interface for raw events.  Called on the observer thread.
+     */
+    static interface Listener {
+        // tree is true if name is a folder that appeared or disappeared.
+        // name is null if everything in directory may have changed.
+        void onChange(String directory, String name, boolean tree);
+    }
+
+    static final int DEFAULT_MAX_WATCHES = 4096;
+
+    // Set by inotify on events about a folder.  Not exposed by FileObserver.
+    private static final int IN_ISDIR = 0x40000000;
+
+    private static final int ENTRY_EVENTS = FileObserver.CREATE |
+            FileObserver.DELETE | FileObserver.MOVED_FROM |
+            FileObserver.MOVED_TO;
+    private static final int SELF_EVENTS = FileObserver.DELETE_SELF |
+            FileObserver.MOVE_SELF;
+    private static final int MASK = ENTRY_EVENTS | SELF_EVENTS |
+            FileObserver.MODIFY | FileObserver.CLOSE_WRITE;
+
+    class DirectoryObserver extends FileObserver {
+        String mDirectory;
+
+        public DirectoryObserver(String directory) {
+            super(directory, MASK);
+            mDirectory = directory;
+        }
+
+        @Override
+        public void onEvent(int event, String name) {
+            if ((event & SELF_EVENTS) != 0) {
+                // The parent reports the folder itself as gone.
+                unwatch(mDirectory);
+                return;
+            }
+            if (name == null || (event & MASK) == 0) {
+                return;
+            }
+            if (name.equals(".nomedia")) {
+                // Hides or reveals everything in the folder.
+                mListener.onChange(mDirectory, null, true);
+                return;
+            }
+            boolean tree = (event & IN_ISDIR) != 0 &&
+                           (event & ENTRY_EVENTS) != 0;
+            mListener.onChange(mDirectory, name, tree);
+        }
+    }
+
+    ScanParameters mScanParameters;
+    int mMaxWatches;
+    Listener mListener;
+
+    // All guarded by this.
+    HashMap<String, DirectoryObserver> mObservers =
+            new HashMap<String, DirectoryObserver>();
+    ArrayList<String> mUnwatchedTrees = new ArrayList<String>();
+    boolean mStopped = false;
+
+    public DirectoryWatcher(ScanParameters scanParameters, int maxWatches,
+                            Listener listener) {
+        mScanParameters = scanParameters;
+        mMaxWatches = maxWatches;
+        mListener = listener;
+    }
+
+    public synchronized int getWatchCount() {
+        return mObservers.size();
+    }
+
+    public synchronized ArrayList<String> getUnwatchedTrees() {
+        return new ArrayList<String>(mUnwatchedTrees);
+    }
+
+    /**
+     * Watches root and the folders below it, breadth first, until the cap
+     * is reached.  Lists every folder, so call it off the main thread.
+     */
+    public void watchTree(File root) {
+        LinkedList<File> queue = new LinkedList<File>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            File directory = queue.removeFirst();
+            String path;
+            try {
+                path = directory.getCanonicalPath();
+            }
+            catch (IOException ex) {
+                continue;
+            }
+            if (!mScanParameters.getScopeMatcher().matches(path) ||
+                    mScanParameters.isExcluded(path)) {
+                continue;
+            }
+            String[] names = directory.list();
+            if (names == null) {
+                continue;
+            }
+            boolean nomedia = false;
+            for (String name : names) {
+                if (name.equals(".nomedia")) {
+                    nomedia = true;
+                }
+            }
+            if (nomedia) {
+                continue;
+            }
+            synchronized (this) {
+                if (mStopped || mObservers.containsKey(path)) {
+                    // Stopped, or reached again through a symlink.
+                    continue;
+                }
+                if (mObservers.size() >= mMaxWatches) {
+                    if (!mUnwatchedTrees.contains(path)) {
+                        mUnwatchedTrees.add(path);
+                    }
+                    continue;
+                }
+                DirectoryObserver observer = new DirectoryObserver(path);
+                observer.startWatching();
+                mObservers.put(path, observer);
+            }
+            for (String name : names) {
+                File child = new File(directory, name);
+                if (child.isDirectory()) {
+                    queue.add(child);
+                }
+            }
+        }
+    }
+
+    private static boolean isAtOrBelow(String path, String tree) {
+        return path.equals(tree) || (path.startsWith(tree) &&
+                path.charAt(tree.length()) == File.separatorChar);
+    }
+
+    /**
+     * Stops watching path and everything below it.
+     */
+    public synchronized void unwatch(String path) {
+        Iterator<Map.Entry<String, DirectoryObserver>> iterator =
+                mObservers.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, DirectoryObserver> entry = iterator.next();
+            if (isAtOrBelow(entry.getKey(), path)) {
+                entry.getValue().stopWatching();
+                iterator.remove();
+            }
+        }
+        Iterator<String> unwatched = mUnwatchedTrees.iterator();
+        while (unwatched.hasNext()) {
+            if (isAtOrBelow(unwatched.next(), path)) {
+                unwatched.remove();
+            }
+        }
+    }
+
+    public synchronized void stop() {
+        mStopped = true;
+        for (DirectoryObserver observer : mObservers.values()) {
+            observer.stopWatching();
+        }
+        mObservers.clear();
+        mUnwatchedTrees.clear();
+    }
+}
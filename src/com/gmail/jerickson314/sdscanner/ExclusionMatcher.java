@@ -0,0 +1,254 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the matcher for user-configured exclusion patterns.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.regex.Pattern;
+
+/**
+ * Decides whether a path is excluded from scans.  Patterns are globs on
+ * path segments, one per line:
+ *
+ *   .thumbnails        any folder or file of that name, at any depth
+ *   Android/data       those two segments in a row, at any depth
+ *   /DCIM/.trash       anchored to the scan root
+ *   *.bak              * and ? match within a segment
+ *   **                 as a whole segment, matches any number of them
+ *
+ * Blank lines and lines starting with # are ignored.  A path is excluded
+ * if it, or any folder above it, matches a pattern.  Paths are matched
+ * relative to the scan root they are under.
+ *
+ * Patterns are compiled once.  Plain names, the usual case, are looked up
+ * in a hash set; only the rest are matched segment by segment.
+ */
+public class ExclusionMatcher {
+
+    static final ExclusionMatcher NONE = new ExclusionMatcher();
+
+    // One segment of a pattern: a literal name, a glob, or "**".
+    static class Segment {
+        String mLiteral;
+        Pattern mGlob;
+        boolean mAnyDepth;
+
+        boolean matches(String name) {
+            if (mLiteral != null) {
+                return mLiteral.equals(name);
+            }
+            return mGlob.matcher(name).matches();
+        }
+    }
+
+    static class Rule {
+        boolean mAnchored;
+        Segment[] mSegments;
+    }
+
+    // Single plain names, matched against any one segment.
+    HashSet<String> mNames = new HashSet<String>();
+    // Single-segment globs, likewise.
+    ArrayList<Segment> mNameGlobs = new ArrayList<Segment>();
+    // Everything else.
+    ArrayList<Rule> mRules = new ArrayList<Rule>();
+    // The patterns in effect, one per line.
+    StringBuilder mPatterns = new StringBuilder();
+
+    private ExclusionMatcher() {
+    }
+
+    /**
+     * Compiles patterns, one per line.
+     */
+    public static ExclusionMatcher compile(String patterns) {
+        ExclusionMatcher matcher = new ExclusionMatcher();
+        if (patterns == null) {
+            return matcher;
+        }
+        for (String line : patterns.split("\n")) {
+            matcher.addPattern(line.trim());
+        }
+        return matcher;
+    }
+
+    private void addPattern(String pattern) {
+        if (pattern.length() == 0 || pattern.startsWith("#")) {
+            return;
+        }
+        boolean anchored = pattern.startsWith("/");
+        ArrayList<Segment> segments = new ArrayList<Segment>();
+        for (String part : pattern.split("/")) {
+            if (part.length() == 0 || part.equals(".")) {
+                continue;
+            }
+            segments.add(compileSegment(part));
+        }
+        if (segments.isEmpty()) {
+            return;
+        }
+        mPatterns.append(pattern).append('\n');
+        if (!anchored && segments.size() == 1 && !segments.get(0).mAnyDepth) {
+            Segment segment = segments.get(0);
+            if (segment.mLiteral != null) {
+                mNames.add(segment.mLiteral);
+            }
+            else {
+                mNameGlobs.add(segment);
+            }
+            return;
+        }
+        Rule rule = new Rule();
+        rule.mAnchored = anchored;
+        rule.mSegments = segments.toArray(new Segment[segments.size()]);
+        mRules.add(rule);
+    }
+
+    private static Segment compileSegment(String part) {
+        Segment segment = new Segment();
+        if (part.equals("**")) {
+            segment.mAnyDepth = true;
+            return segment;
+        }
+        if (part.indexOf('*') < 0 && part.indexOf('?') < 0) {
+            segment.mLiteral = part;
+            return segment;
+        }
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < part.length(); i++) {
+            char c = part.charAt(i);
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            }
+            else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        segment.mGlob = Pattern.compile(regex.toString());
+        return segment;
+    }
+
+    /**
+     * Returns the patterns in effect, without blanks or comments, so two
+     * matchers with the same result compare equal.
+     */
+    public String getPatterns() {
+        return mPatterns.toString();
+    }
+
+    public boolean isEmpty() {
+        return mNames.isEmpty() && mNameGlobs.isEmpty() && mRules.isEmpty();
+    }
+
+    private boolean nameExcluded(String name) {
+        if (mNames.contains(name)) {
+            return true;
+        }
+        for (int i = 0; i < mNameGlobs.size(); i++) {
+            if (mNameGlobs.get(i).matches(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether segments[start, end) match rule.mSegments[from...] exactly.
+    private static boolean matchesRange(Segment[] pattern, int from,
+                                        String[] segments, int start,
+                                        int end) {
+        if (from == pattern.length) {
+            return start == end;
+        }
+        if (pattern[from].mAnyDepth) {
+            for (int i = start; i <= end; i++) {
+                if (matchesRange(pattern, from + 1, segments, i, end)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return start < end && pattern[from].matches(segments[start]) &&
+               matchesRange(pattern, from + 1, segments, start + 1, end);
+    }
+
+    // Whether some rule matches a run of segments ending just before end.
+    private boolean ruleMatchesEndingAt(String[] segments, int end) {
+        for (int r = 0; r < mRules.size(); r++) {
+            Rule rule = mRules.get(r);
+            int lastStart = rule.mAnchored ? 0 : end - 1;
+            for (int start = 0; start <= lastStart; start++) {
+                if (matchesRange(rule.mSegments, 0, segments, start, end)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether a pattern matches relativePath itself, ignoring the folders
+     * above it.  Enough for a walk, which never reaches below an excluded
+     * folder.
+     *
+     * @param relativePath Path below the scan root, without a leading /.
+     */
+    public boolean excludesEntry(String relativePath) {
+        if (relativePath.length() == 0) {
+            return false;
+        }
+        String name = relativePath.substring(relativePath.lastIndexOf('/') + 1);
+        if (nameExcluded(name)) {
+            return true;
+        }
+        if (mRules.isEmpty()) {
+            return false;
+        }
+        String[] segments = relativePath.split("/");
+        return ruleMatchesEndingAt(segments, segments.length);
+    }
+
+    /**
+     * Whether relativePath or any folder above it is excluded.
+     *
+     * @param relativePath Path below the scan root, without a leading /.
+     */
+    public boolean excludes(String relativePath) {
+        if (relativePath.length() == 0) {
+            return false;
+        }
+        String[] segments = relativePath.split("/");
+        for (int end = 1; end <= segments.length; end++) {
+            if (nameExcluded(segments[end - 1])) {
+                return true;
+            }
+            if (!mRules.isEmpty() && ruleMatchesEndingAt(segments, end)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,96 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains a compact histogram of latencies, used to report
+ * percentiles without keeping every sample.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+/**
+ * Log-linear histogram of latencies in microseconds.  Values below
+ * LINEAR_LIMIT get a bucket each; above that, each power of two is split
+ * into SUB_BUCKETS buckets, so a reported percentile is within 1/SUB_BUCKETS
+ * of the true value.  Not thread-safe.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    // Enough for any non-negative long.
+    private static final int BUCKETS =
+            LINEAR_LIMIT + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    long[] mCounts = new long[BUCKETS];
+    long mTotal = 0;
+    long mMax = 0;
+
+    private static int bucketFor(long micros) {
+        if (micros < LINEAR_LIMIT) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) &
+                  (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT +
+               (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + sub;
+    }
+
+    // Largest value that falls in bucket.
+    private static long bucketLimit(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS +
+                       SUB_BUCKET_BITS + 1;
+        long sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public void record(long micros) {
+        micros = Math.max(0, micros);
+        mCounts[bucketFor(micros)]++;
+        mTotal++;
+        mMax = Math.max(mMax, micros);
+    }
+
+    public long getCount() {
+        return mTotal;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @return An upper bound on the given percentile, or 0 if empty.
+     */
+    public long getPercentile(double percentile) {
+        if (mTotal == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(mTotal * percentile / 100.0);
+        rank = Math.max(1, Math.min(mTotal, rank));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += mCounts[bucket];
+            if (seen >= rank) {
+                return Math.min(bucketLimit(bucket), mMax);
+            }
+        }
+        return mMax;
+    }
+}
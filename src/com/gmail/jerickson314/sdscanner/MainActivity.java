@@ -31,16 +31,58 @@ import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.ProgressBar;
+import android.widget.RadioGroup;
 import android.widget.TextView;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 
 public class MainActivity extends Activity
         implements ScanFragment.ScanProgressCallbacks
 {
+    // Extras accepted with ACTION_RUN.
+    static final String EXTRA_LOW_STAT_WALK = "low_stat_walk";
+    // List every folder, ignoring the last scan's index.  Defaults to the
+    // checkbox.
+    static final String EXTRA_FULL_RESCAN = "full_rescan";
+    static final String EXTRA_SCAN_WINDOW = "scan_window";
+    static final String EXTRA_SCAN_BATCH_SIZE = "scan_batch_size";
+    static final String EXTRA_PIPELINE = "pipeline";
+    // Scan every mounted volume instead of the path.  Defaults to the
+    // checkbox.
+    static final String EXTRA_ALL_VOLUMES = "all_volumes";
+    // Exclusion patterns, one per line.  Defaults to the text field.
+    static final String EXTRA_EXCLUSIONS = "exclusions";
+    // Which new files to scan: "media", "documents" (with media) or "all".
+    // Defaults to the radio buttons.
+    static final String EXTRA_FILE_TYPES = "file_types";
+    // Whether to read files with no extension to tell their type.
+    static final String EXTRA_SNIFF = "sniff";
+    // Paths held in memory before the file list spills to storage, or 0
+    // for none.  Defaults to the checkbox.
+    static final String EXTRA_SPILL_THRESHOLD = "spill_threshold";
+    // Whether to delete missing files' rows directly rather than through
+    // the media scanner.  Off by default, as older providers delete the
+    // file along with the row.
+    static final String EXTRA_DELETE_ROWS = "delete_rows";
+    // Finish an interrupted scan, if there is one, instead of a new scan.
+    static final String EXTRA_RESUME = "resume";
+    // Only work out what the scan would do, returning it as EXTRA_PLAN.
+    static final String EXTRA_PLAN_ONLY = "plan_only";
+
+    // Result extra holding the JSON metrics report of an ACTION_RUN scan.
+    static final String EXTRA_METRICS = "metrics";
+    // Result extra holding the JSON report of an EXTRA_PLAN_ONLY scan.
+    static final String EXTRA_PLAN = "plan";
+
     ScanFragment mScanFragment;
 
+    // Debug log shown in the view, and how much of it is shown.
+    DebugLog mShownDebugLog;
+    long mShownDebugSequence;
+    int mShownDebugMessages;
+
     @Override
     public void updateProgressNum(int progressNum) {
         ProgressBar progressBar = (ProgressBar)findViewById(R.id.progress_bar);
@@ -54,9 +96,24 @@ public class MainActivity extends Activity
     }
 
     @Override
-    public void updateDebugMessages(UIStringGenerator debugMessages) {
+    public void updateDebugMessages(DebugLog debugMessages) {
         TextView debugLabel = (TextView)findViewById(R.id.debug_label);
-        debugLabel.setText(debugMessages.toString(this));
+        long nextSequence = debugMessages.getNextSequence();
+        if (debugMessages != mShownDebugLog ||
+                mShownDebugMessages >= 2 * DebugLog.CAPACITY) {
+            // New log, or the view has grown well past what the log
+            // retains; start over from what the log still has.
+            debugLabel.setText(debugMessages.renderAll(this));
+            mShownDebugLog = debugMessages;
+            mShownDebugMessages = (int) (nextSequence -
+                    debugMessages.getFirstRetainedSequence());
+        }
+        else {
+            debugLabel.append(
+                    debugMessages.render(this, mShownDebugSequence));
+            mShownDebugMessages += (int) (nextSequence - mShownDebugSequence);
+        }
+        mShownDebugSequence = nextSequence;
     }
 
     @Override
@@ -69,6 +126,26 @@ public class MainActivity extends Activity
     public void updateStartButtonEnabled(boolean startButtonEnabled) {
         Button startButton = (Button)findViewById(R.id.start_button);
         startButton.setEnabled(startButtonEnabled);
+        // Only a running scan can be cancelled.
+        Button cancelButton = (Button)findViewById(R.id.cancel_button);
+        cancelButton.setEnabled(!startButtonEnabled);
+    }
+
+    @Override
+    public void updateResumeAvailable(int remaining) {
+        Button resumeButton = (Button)findViewById(R.id.resume_button);
+        if (remaining > 0) {
+            resumeButton.setText(getString(R.string.button_resume, remaining));
+            resumeButton.setVisibility(View.VISIBLE);
+        }
+        else {
+            resumeButton.setVisibility(View.GONE);
+        }
+    }
+
+    @Override
+    public void resumeCheckFinished() {
+        startAutomatedScan();
     }
 
     public void updateRestrictCheckboxChecked(boolean checked) {
@@ -76,9 +153,73 @@ public class MainActivity extends Activity
         restrictCheckbox.setChecked(checked);
     }
 
+    public void updateAllVolumesCheckboxChecked(boolean checked) {
+        CheckBox allVolumesCheckbox =
+                (CheckBox) findViewById(R.id.all_volumes_checkbox);
+        allVolumesCheckbox.setChecked(checked);
+    }
+
+    public void updateFileTypes(String fileTypes) {
+        RadioGroup fileTypesGroup =
+                (RadioGroup) findViewById(R.id.file_types_group);
+        if (fileTypes.equals("media")) {
+            fileTypesGroup.check(R.id.file_types_media);
+        }
+        else if (fileTypes.equals("documents")) {
+            fileTypesGroup.check(R.id.file_types_documents);
+        }
+        else {
+            fileTypesGroup.check(R.id.file_types_all);
+        }
+    }
+
+    private String getCheckedFileTypes() {
+        RadioGroup fileTypesGroup =
+                (RadioGroup) findViewById(R.id.file_types_group);
+        int checked = fileTypesGroup.getCheckedRadioButtonId();
+        if (checked == R.id.file_types_media) {
+            return "media";
+        }
+        if (checked == R.id.file_types_documents) {
+            return "documents";
+        }
+        return "all";
+    }
+
+    private static MediaTypeFilter.Mode parseFileTypes(String fileTypes) {
+        if (fileTypes.equals("media")) {
+            return MediaTypeFilter.Mode.MEDIA;
+        }
+        if (fileTypes.equals("documents")) {
+            return MediaTypeFilter.Mode.MEDIA_AND_DOCUMENTS;
+        }
+        return MediaTypeFilter.Mode.EVERYTHING;
+    }
+
+    public void updateLowMemoryCheckboxChecked(boolean checked) {
+        CheckBox lowMemoryCheckbox =
+                (CheckBox) findViewById(R.id.low_memory_checkbox);
+        lowMemoryCheckbox.setChecked(checked);
+    }
+
+    public void updateExclusions(String exclusions) {
+        EditText exclusionsText =
+                (EditText) findViewById(R.id.exclusions_widget);
+        exclusionsText.setText(exclusions);
+    }
+
     @Override
     public void signalFinished() {
         if (getIntent().getAction().equals(Intent.ACTION_RUN)) {
+            String report = mScanFragment.getMetricsReport();
+            if (report != null) {
+                Intent result = new Intent().putExtra(EXTRA_METRICS, report);
+                String plan = mScanFragment.getPlanReport();
+                if (plan != null) {
+                    result.putExtra(EXTRA_PLAN, plan);
+                }
+                setResult(RESULT_OK, result);
+            }
             finish();
         }
     }
@@ -103,6 +244,7 @@ public class MainActivity extends Activity
         updateProgressText(mScanFragment.getProgressText());
         updateDebugMessages(mScanFragment.getDebugMessages());
         updateStartButtonEnabled(mScanFragment.getStartButtonEnabled());
+        updateResumeAvailable(mScanFragment.getResumeRemaining());
 
         // Update path from preferences
         SharedPreferences preferences = getPreferences(Context.MODE_PRIVATE);
@@ -111,6 +253,12 @@ public class MainActivity extends Activity
                  Environment.getExternalStorageDirectory().getCanonicalPath()));
             updateRestrictCheckboxChecked(preferences.getBoolean(
                  "restrict_db_scan", false));
+            updateAllVolumesCheckboxChecked(preferences.getBoolean(
+                 "all_volumes", false));
+            updateExclusions(preferences.getString("exclusions", ""));
+            updateFileTypes(preferences.getString("file_types", "all"));
+            updateLowMemoryCheckboxChecked(preferences.getBoolean(
+                 "low_memory", false));
         }
         catch (IOException Ex) {
             // Should never happen, but getCanonicalPath() declares the throw.
@@ -127,15 +275,31 @@ public class MainActivity extends Activity
     public void onStart() {
         super.onStart();
 
-        if (!mScanFragment.getHasStarted() &&
-                getIntent().getAction().equals(Intent.ACTION_RUN)) {
-            try {
-                startScan();
+        startAutomatedScan();
+    }
+
+    // ACTION_RUN scans wait until the fragment has checked for an
+    // interrupted scan, so they know whether there is one to resume, and
+    // until onStart(), so the saved preferences are in the widgets.
+    private void startAutomatedScan() {
+        Intent intent = getIntent();
+        if (mScanFragment.getHasStarted() ||
+                !mScanFragment.getResumeChecked() ||
+                !intent.getAction().equals(Intent.ACTION_RUN)) {
+            return;
+        }
+        try {
+            if (intent.getBooleanExtra(EXTRA_RESUME, false) &&
+                    mScanFragment.getResume() != null) {
+                resumeScan();
             }
-            catch (IOException ex) {
-                // We currently do nothing.
+            else {
+                startScan();
             }
         }
+        catch (IOException ex) {
+            // We currently do nothing.
+        }
     }
 
     @Override
@@ -150,6 +314,16 @@ public class MainActivity extends Activity
         SharedPreferences.Editor editor = preferences.edit();
         editor.putString("path", pathText.getText().toString());
         editor.putBoolean("restrict_db_scan", restrictCheckbox.isChecked());
+        CheckBox allVolumesCheckbox =
+                (CheckBox) findViewById(R.id.all_volumes_checkbox);
+        editor.putBoolean("all_volumes", allVolumesCheckbox.isChecked());
+        EditText exclusionsText =
+                (EditText) findViewById(R.id.exclusions_widget);
+        editor.putString("exclusions", exclusionsText.getText().toString());
+        editor.putString("file_types", getCheckedFileTypes());
+        CheckBox lowMemoryCheckbox =
+                (CheckBox) findViewById(R.id.low_memory_checkbox);
+        editor.putBoolean("low_memory", lowMemoryCheckbox.isChecked());
         editor.commit();
     }
 
@@ -161,12 +335,99 @@ public class MainActivity extends Activity
         startScan();
     }
 
+    // Whatever the scanner already had can be resumed.
+    public void cancelButtonPressed(View view) {
+        mScanFragment.cancelScan(true);
+    }
+
+    public void resumeButtonPressed(View view) {
+        resumeScan();
+    }
+
+    // Checking the box takes effect with the next scan.
+    public void watchCheckboxClicked(View view) {
+        if (!((CheckBox) view).isChecked()) {
+            mScanFragment.stopWatching();
+        }
+    }
+
     public void startScan() throws IOException {
         EditText pathText = (EditText) findViewById(R.id.path_widget);
         File path = new File(pathText.getText().toString());
         CheckBox restrictCheckbox = (CheckBox) findViewById(R.id.restrict_checkbox);
+        CheckBox allVolumesCheckbox =
+                (CheckBox) findViewById(R.id.all_volumes_checkbox);
 
-        mScanFragment.startScan(path.getCanonicalFile(), restrictCheckbox.isChecked());
+        // The volumes are found once the scan is under way, off the main
+        // thread; path is used if none are mounted.
+        ArrayList<File> roots = new ArrayList<File>();
+        roots.add(path.getCanonicalFile());
+        ScanParameters scanParameters =
+                newScanParameters(roots, restrictCheckbox.isChecked());
+        scanParameters.setAllVolumes(getIntent().getBooleanExtra(
+                EXTRA_ALL_VOLUMES, allVolumesCheckbox.isChecked()));
+        mScanFragment.startScan(scanParameters);
+    }
+
+    // The interrupted scan's own paths and restriction apply; everything
+    // else is taken as for a new scan.
+    public void resumeScan() {
+        ScanJournal.Resume resume = mScanFragment.getResume();
+        if (resume == null) {
+            return;
+        }
+        mScanFragment.resumeScan(newScanParameters(
+                resume.getRoots(), resume.getRestrictDbUpdate()));
+    }
+
+    private ScanParameters newScanParameters(ArrayList<File> roots,
+                                             boolean restrictDbUpdate) {
+        ScanParameters scanParameters =
+                new ScanParameters(roots, restrictDbUpdate);
+        Intent intent = getIntent();
+        scanParameters.setLowStatWalk(
+                intent.getBooleanExtra(EXTRA_LOW_STAT_WALK, true));
+        // Not saved with the other settings, being meant for one scan.
+        CheckBox fullRescanCheckbox =
+                (CheckBox) findViewById(R.id.full_rescan_checkbox);
+        scanParameters.setFullRescan(intent.getBooleanExtra(
+                EXTRA_FULL_RESCAN, fullRescanCheckbox.isChecked()));
+        String exclusions = intent.getStringExtra(EXTRA_EXCLUSIONS);
+        if (exclusions == null) {
+            EditText exclusionsText =
+                    (EditText) findViewById(R.id.exclusions_widget);
+            exclusions = exclusionsText.getText().toString();
+        }
+        scanParameters.setExclusions(ExclusionMatcher.compile(exclusions));
+        String fileTypes = intent.getStringExtra(EXTRA_FILE_TYPES);
+        if (fileTypes == null) {
+            fileTypes = getCheckedFileTypes();
+        }
+        scanParameters.setTypeFilter(new MediaTypeFilter(
+                parseFileTypes(fileTypes),
+                intent.getBooleanExtra(EXTRA_SNIFF, true)));
+        CheckBox lowMemoryCheckbox =
+                (CheckBox) findViewById(R.id.low_memory_checkbox);
+        scanParameters.setSpillThreshold(intent.getIntExtra(
+                EXTRA_SPILL_THRESHOLD, lowMemoryCheckbox.isChecked() ?
+                        SpillingPathSet.DEFAULT_THRESHOLD : 0));
+        scanParameters.setDeleteMissingRows(
+                intent.getBooleanExtra(EXTRA_DELETE_ROWS, false));
+        scanParameters.setPlanOnly(
+                intent.getBooleanExtra(EXTRA_PLAN_ONLY, false));
+        scanParameters.setScanWindow(intent.getIntExtra(
+                EXTRA_SCAN_WINDOW, ScanSubmitter.DEFAULT_WINDOW));
+        scanParameters.setScanBatchSize(intent.getIntExtra(
+                EXTRA_SCAN_BATCH_SIZE, ScanSubmitter.DEFAULT_BATCH_SIZE));
+        // Automated runs care most about total time, so pipeline them
+        // unless told otherwise.
+        scanParameters.setPipelined(intent.getBooleanExtra(EXTRA_PIPELINE,
+                intent.getAction().equals(Intent.ACTION_RUN)));
+        // Automated runs finish with the scan, so never watch.
+        CheckBox watchCheckbox = (CheckBox) findViewById(R.id.watch_checkbox);
+        scanParameters.setWatch(watchCheckbox.isChecked() &&
+                !intent.getAction().equals(Intent.ACTION_RUN));
+        return scanParameters;
     }
 
 }
@@ -0,0 +1,68 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the interface through which scans read the media
+ * database, so the scan logic can also run against an in-memory stand-in.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.io.IOException;
+
+public interface MediaIndex {
+
+    /**
+     * Interface for consumers of media database rows, which arrive in _data
+     * order.
+     */
+    interface RowHandler {
+        /**
+         * @param dateModified The row's DATE_MODIFIED, in seconds.
+         */
+        void addRow(long id, String data, long dateModified) throws IOException;
+    }
+
+    /**
+     * Forward-only view of one page of rows.
+     */
+    interface Rows {
+        boolean moveToNext();
+        long getId();
+        String getData();
+        long getDateModified();
+        void close();
+    }
+
+    /**
+     * Returns the number of rows with a non-null path, counting only rows
+     * under scope's roots if scope is not null.
+     */
+    int countRows(ScopeMatcher scope);
+
+    /**
+     * Returns at most limit rows ordered by (path, id) that come strictly
+     * after (afterData, afterId) in that order, counting only rows under
+     * scope's roots if scope is not null.  Rows with a null path are never
+     * returned.
+     */
+    Rows queryPage(ScopeMatcher scope, String afterData, long afterId,
+                   int limit);
+
+    /**
+     * Deletes the rows with the given ids, returning how many went.  May
+     * throw if the provider won't allow it.
+     */
+    int deleteRows(long[] ids);
+}
@@ -0,0 +1,41 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the interface through which scans reach the system
+ * media scanner, so the submission logic can also run against a stand-in.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+public interface MediaScanner {
+
+    /**
+     * Callback interface for connection and scan results.  May be called on
+     * any thread.
+     */
+    interface Client {
+        void onConnected();
+        void onScanCompleted(String path);
+    }
+
+    void connect(Client client);
+
+    /**
+     * Requests a scan of path.  Only valid once connected.
+     */
+    void scanFile(String path);
+
+    void disconnect();
+}
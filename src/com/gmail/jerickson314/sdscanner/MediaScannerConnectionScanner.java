@@ -0,0 +1,55 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the MediaScanner backed by the system media scanner
+ * service.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+
+public class MediaScannerConnectionScanner implements MediaScanner {
+    Context mContext;
+    MediaScannerConnection mConnection;
+
+    public MediaScannerConnectionScanner(Context context) {
+        mContext = context;
+    }
+
+    public void connect(final Client client) {
+        mConnection = new MediaScannerConnection(mContext,
+                new MediaScannerConnection.MediaScannerConnectionClient() {
+                    public void onMediaScannerConnected() {
+                        client.onConnected();
+                    }
+
+                    public void onScanCompleted(String path, Uri uri) {
+                        client.onScanCompleted(path);
+                    }
+                });
+        mConnection.connect();
+    }
+
+    public void scanFile(String path) {
+        mConnection.scanFile(path, null);
+    }
+
+    public void disconnect() {
+        mConnection.disconnect();
+    }
+}
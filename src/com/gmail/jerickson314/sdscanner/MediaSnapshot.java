@@ -0,0 +1,170 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains an in-memory copy of the media database rows in
+ * scope, used by pipelined scans to classify files as soon as the walk
+ * finds them.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Media database rows keyed by canonical path.  Rows are loaded in _data
+ * order, so each row's position in the PathSet is simply its arrival order
+ * and the ids and modification times can live in plain arrays.  Rows that
+ * arrive out of order or with a repeated path are kept in a small map
+ * instead.
+ *
+ * Loading happens on one thread.  After finishLoading(), markSeen() may be
+ * called from any number of threads at once without locking; the seen
+ * flags are bits set by compare-and-set.
+ */
+public class MediaSnapshot implements MediaIndex.RowHandler {
+
+    /**
+     * Callback interface for rows never marked as seen.
+     */
+    static interface UnseenRowHandler {
+        void onUnseenRow(long id, String data, long dateModified);
+    }
+
+    PathSet mPaths = new PathSet();
+    long[] mIds = new long[1024];
+    long[] mDateModified = new long[1024];
+    int mCount = 0;
+    String mLastData;
+
+    // Rows arrive a folder at a time, so each folder is only canonicalized
+    // once.
+    String mLastFolder;
+    String mLastCanonicalFolder;
+
+    // Set by finishLoading().
+    PathSet.Lookup mLookup;
+    AtomicLongArray mSeen;
+
+    // {id, dateModified, seen} for rows that could not go in the arrays.
+    // Not changed structurally once loaded, so safe to read concurrently.
+    HashMap<String, long[]> mOverflow = new HashMap<String, long[]>();
+
+    public int size() {
+        return mCount + mOverflow.size();
+    }
+
+    public void addRow(long id, String data, long dateModified) {
+        // The walk finds files under their canonical names, which rows
+        // written through /sdcard don't use.
+        data = canonicalize(data);
+        if (mLastData != null && PathSet.comparePaths(data, mLastData) <= 0) {
+            mOverflow.put(data, new long[] {id, dateModified, 0});
+            return;
+        }
+        mLastData = data;
+        if (mCount == mIds.length) {
+            long[] ids = new long[mCount * 2];
+            long[] dateModified2 = new long[mCount * 2];
+            System.arraycopy(mIds, 0, ids, 0, mCount);
+            System.arraycopy(mDateModified, 0, dateModified2, 0, mCount);
+            mIds = ids;
+            mDateModified = dateModified2;
+        }
+        mPaths.add(data);
+        mIds[mCount] = id;
+        mDateModified[mCount] = dateModified;
+        mCount++;
+    }
+
+    // Canonicalizes the folder, which is where /sdcard and similar links
+    // live; the files themselves can't be links on a FAT-style volume.
+    private String canonicalize(String data) {
+        int slash = data.lastIndexOf('/');
+        if (slash <= 0) {
+            return data;
+        }
+        if (mLastFolder == null || mLastFolder.length() != slash ||
+                !data.startsWith(mLastFolder)) {
+            mLastFolder = data.substring(0, slash);
+            try {
+                mLastCanonicalFolder =
+                        new File(mLastFolder).getCanonicalPath();
+            }
+            catch (IOException ex) {
+                mLastCanonicalFolder = mLastFolder;
+            }
+        }
+        if (mLastCanonicalFolder.equals(mLastFolder)) {
+            return data;
+        }
+        return mLastCanonicalFolder + data.substring(slash);
+    }
+
+    public void finishLoading() {
+        mLookup = mPaths.lookup();
+        mSeen = new AtomicLongArray((mCount + 63) / 64);
+    }
+
+    /**
+     * Marks the row for path as seen by the walk.
+     *
+     * @return The row's DATE_MODIFIED in seconds, or -1 if there is no row.
+     */
+    public long markSeen(String path) {
+        long[] overflow = mOverflow.get(path);
+        if (overflow != null) {
+            // Only ever set, and read once the walk is over.
+            overflow[2] = 1;
+            return overflow[1];
+        }
+        int index = mLookup.indexOf(path);
+        if (index < 0) {
+            return -1;
+        }
+        int word = index >>> 6;
+        long bit = 1L << index;
+        long seen = mSeen.get(word);
+        while ((seen & bit) == 0 &&
+               !mSeen.compareAndSet(word, seen, seen | bit)) {
+            seen = mSeen.get(word);
+        }
+        return mDateModified[index];
+    }
+
+    /**
+     * Reports every row that markSeen() was never called for.  Must not
+     * overlap calls to markSeen().
+     */
+    public void forEachUnseen(UnseenRowHandler handler) {
+        Iterator<String> iterator = mPaths.iterator();
+        for (int i = 0; iterator.hasNext(); i++) {
+            String data = iterator.next();
+            if ((mSeen.get(i >>> 6) & (1L << i)) == 0) {
+                handler.onUnseenRow(mIds[i], data, mDateModified[i]);
+            }
+        }
+        for (Map.Entry<String, long[]> entry : mOverflow.entrySet()) {
+            long[] row = entry.getValue();
+            if (row[2] == 0) {
+                handler.onUnseenRow(row[0], entry.getKey(), row[1]);
+            }
+        }
+    }
+}
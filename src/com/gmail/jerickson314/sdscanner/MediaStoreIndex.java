@@ -0,0 +1,214 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the MediaIndex backed by the system MediaStore.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+
+import java.util.ArrayList;
+
+public class MediaStoreIndex implements MediaIndex {
+
+    private static final String[] MEDIA_PROJECTION =
+        {MediaStore.MediaColumns._ID,
+         MediaStore.MediaColumns.DATA,
+         MediaStore.MediaColumns.DATE_MODIFIED};
+
+    private static final String[] ID_PROJECTION =
+        {MediaStore.MediaColumns._ID};
+
+    ContentResolver mResolver;
+    Uri mUri = MediaStore.Files.getContentUri("external");
+
+    public MediaStoreIndex(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    // Selection restricting _data to the scope's roots and everything below
+    // them.  A range on _data can use its index, unlike LIKE.
+    private static String scopeSelection(ScopeMatcher scope,
+                                         ArrayList<String> args) {
+        StringBuilder selection = new StringBuilder("(");
+        for (String root : scope.getRoots()) {
+            String prefix = root.endsWith("/") ? root : root + "/";
+            if (args.size() > 0) {
+                selection.append(" OR ");
+            }
+            selection.append(MediaStore.MediaColumns.DATA + " = ? OR (" +
+                    MediaStore.MediaColumns.DATA + " >= ? AND " +
+                    MediaStore.MediaColumns.DATA + " < ?)");
+            args.add(root);
+            args.add(prefix);
+            // '0' is the character after '/'.
+            args.add(prefix.substring(0, prefix.length() - 1) + "0");
+        }
+        return selection.append(")").toString();
+    }
+
+    // Only _id is projected, so the provider counts without shipping the
+    // rows across.
+    public int countRows(ScopeMatcher scope) {
+        ArrayList<String> args = new ArrayList<String>();
+        String selection = MediaStore.MediaColumns.DATA + " IS NOT NULL";
+        if (scope != null) {
+            selection += " AND " + scopeSelection(scope, args);
+        }
+        Cursor cursor = mResolver.query(mUri, ID_PROJECTION, selection,
+                args.toArray(new String[args.size()]), null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.getCount();
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    // Rows from fromData on, by (_data, _id).  A lone range on _data lets
+    // SQLite seek its index and walk it in order, where a keyset OR across
+    // _data and _id would have it scan and sort every remaining row.
+    private Cursor queryFrom(ScopeMatcher scope, String fromData, int limit) {
+        ArrayList<String> args = new ArrayList<String>();
+        args.add(fromData);
+        String selection = MediaStore.MediaColumns.DATA + " >= ?";
+        if (scope != null) {
+            selection += " AND " + scopeSelection(scope, args);
+        }
+        String sortOrder = MediaStore.MediaColumns.DATA + ", " +
+                MediaStore.MediaColumns._ID + " LIMIT " + limit;
+        Cursor cursor = mResolver.query(mUri, MEDIA_PROJECTION,
+                selection, args.toArray(new String[args.size()]), sortOrder);
+        if (cursor == null) {
+            throw new IllegalStateException("Media database query failed");
+        }
+        return cursor;
+    }
+
+    public Rows queryPage(ScopeMatcher scope, String afterData, long afterId,
+                          int limit) {
+        return new PageRows(scope, afterData, afterId, limit);
+    }
+
+    /**
+     * One page, read from cursors that start at the last key's path.  Rows
+     * with that path and an id up to the last key's were already handed
+     * over, so are skipped here.  Usually that is a single row, which the
+     * extra row fetched covers; if paths repeat, further cursors carry on
+     * from the last row handed over until the page is full, fetching more
+     * at a time while a whole cursor is skipped.
+     */
+    private class PageRows implements Rows {
+        ScopeMatcher mScope;
+        String mSkipData;
+        long mSkipId;
+        int mLimit;
+        int mReturned = 0;
+        Cursor mCursor;
+        int mFetchLimit;
+        int mFetched;
+        boolean mCursorReturned;
+        int mIdColumn;
+        int mDataColumn;
+        int mModifiedColumn;
+
+        PageRows(ScopeMatcher scope, String afterData, long afterId,
+                 int limit) {
+            mScope = scope;
+            mSkipData = afterData;
+            mSkipId = afterId;
+            mLimit = limit;
+            mFetchLimit = limit + 1;
+            open();
+        }
+
+        private void open() {
+            mCursor = queryFrom(mScope, mSkipData, mFetchLimit);
+            mFetched = 0;
+            mCursorReturned = false;
+            mIdColumn = mCursor.getColumnIndex(MediaStore.MediaColumns._ID);
+            mDataColumn =
+                    mCursor.getColumnIndex(MediaStore.MediaColumns.DATA);
+            mModifiedColumn = mCursor.getColumnIndex(
+                    MediaStore.MediaColumns.DATE_MODIFIED);
+        }
+
+        public boolean moveToNext() {
+            while (mReturned < mLimit) {
+                if (!mCursor.moveToNext()) {
+                    if (mFetched < mFetchLimit) {
+                        // Ran out of rows.
+                        return false;
+                    }
+                    if (!mCursorReturned) {
+                        mFetchLimit *= 2;
+                    }
+                    mCursor.close();
+                    open();
+                    continue;
+                }
+                mFetched++;
+                long id = mCursor.getLong(mIdColumn);
+                String data = mCursor.getString(mDataColumn);
+                if (data.equals(mSkipData) && id <= mSkipId) {
+                    continue;
+                }
+                mSkipData = data;
+                mSkipId = id;
+                mReturned++;
+                mCursorReturned = true;
+                return true;
+            }
+            return false;
+        }
+
+        public long getId() {
+            return mCursor.getLong(mIdColumn);
+        }
+
+        public String getData() {
+            return mCursor.getString(mDataColumn);
+        }
+
+        public long getDateModified() {
+            return mCursor.getLong(mModifiedColumn);
+        }
+
+        public void close() {
+            mCursor.close();
+        }
+    }
+
+    // One statement for the whole batch, where applyBatch() would run a
+    // delete per row.
+    public int deleteRows(long[] ids) {
+        StringBuilder selection = new StringBuilder(
+                MediaStore.MediaColumns._ID + " IN (");
+        String[] args = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+            args[i] = Long.toString(ids[i]);
+        }
+        selection.append(")");
+        return mResolver.delete(mUri, selection.toString(), args);
+    }
+}
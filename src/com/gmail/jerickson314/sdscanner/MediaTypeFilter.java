@@ -0,0 +1,244 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the file type check that keeps files the media
+ * scanner would find nothing in from being sent to it.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Classifies files as media, documents or other, by extension, and
+ * optionally by their first few bytes when they have no extension.  The
+ * extension table follows the types the platform media scanner indexes.
+ */
+public class MediaTypeFilter {
+
+    /**
+     * Which files a scan sends to the media scanner.  Folders always go.
+     */
+    enum Mode {
+        // Audio, video, images and playlists.
+        MEDIA,
+        // Those plus documents, which the scanner also indexes by type.
+        MEDIA_AND_DOCUMENTS,
+        // Every file, so all of them show up over MTP.
+        EVERYTHING
+    }
+
+    static final int KIND_OTHER = 0;
+    static final int KIND_MEDIA = 1;
+    static final int KIND_DOCUMENT = 2;
+
+    // Bytes read when sniffing, enough for every signature below.
+    private static final int SNIFF_LENGTH = 12;
+
+    private static final String[] MEDIA_EXTENSIONS = {
+        // Audio
+        "mp3", "mpga", "m4a", "aac", "wav", "amr", "awb", "wma", "ogg",
+        "oga", "opus", "flac", "mka", "mid", "midi", "xmf", "mxmf", "rtttl",
+        "rtx", "ota", "imy", "3ga",
+        // Video
+        "mp4", "m4v", "3gp", "3gpp", "3g2", "3gpp2", "mkv", "webm", "ts",
+        "avi", "wmv", "asf", "mov", "flv", "mpg", "mpeg",
+        // Images
+        "jpg", "jpeg", "gif", "png", "bmp", "wbmp", "webp", "heic", "heif",
+        "dng", "cr2", "nef", "nrw", "arw", "rw2", "orf", "raf", "pef", "srw",
+        // Playlists
+        "m3u", "m3u8", "pls", "wpl"
+    };
+
+    private static final String[] DOCUMENT_EXTENSIONS = {
+        "pdf", "txt", "rtf", "csv", "htm", "html", "xml", "doc", "docx",
+        "xls", "xlsx", "ppt", "pptx", "odt", "ods", "odp", "epub"
+    };
+
+    private static final HashMap<String, Integer> KINDS =
+            new HashMap<String, Integer>();
+
+    static {
+        for (String extension : MEDIA_EXTENSIONS) {
+            KINDS.put(extension, KIND_MEDIA);
+        }
+        for (String extension : DOCUMENT_EXTENSIONS) {
+            KINDS.put(extension, KIND_DOCUMENT);
+        }
+    }
+
+    Mode mMode;
+    boolean mSniff;
+
+    /**
+     * @param sniff Whether to read the start of files with no extension.
+     */
+    public MediaTypeFilter(Mode mode, boolean sniff) {
+        mMode = mode;
+        mSniff = sniff;
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    public boolean getSniff() {
+        return mSniff;
+    }
+
+    /**
+     * Whether the scan should send file, known not to be a folder, to the
+     * media scanner.  May read the file, so call it off the main thread.
+     */
+    public boolean accepts(File file) {
+        if (mMode == Mode.EVERYTHING) {
+            return true;
+        }
+        int kind = kindOf(file, mSniff);
+        return kind == KIND_MEDIA ||
+               (kind == KIND_DOCUMENT && mMode == Mode.MEDIA_AND_DOCUMENTS);
+    }
+
+    /**
+     * Like accepts(), but never reads the file, so safe on the main thread.
+     * Files with no extension are accepted.
+     */
+    public boolean acceptsByName(File file) {
+        if (mMode == Mode.EVERYTHING || !hasExtension(file.getName())) {
+            return true;
+        }
+        return accepts(file);
+    }
+
+    private static boolean hasExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        // A leading dot marks a hidden file, not an extension.
+        return dot > 0 && dot < name.length() - 1;
+    }
+
+    /**
+     * Returns the kind of file by its extension.  With no extension, sniffs
+     * its content if asked to and says KIND_OTHER if not.
+     */
+    public static int kindOf(File file, boolean sniff) {
+        String name = file.getName();
+        if (hasExtension(name)) {
+            Integer kind = KINDS.get(name.substring(
+                    name.lastIndexOf('.') + 1).toLowerCase(Locale.US));
+            return kind == null ? KIND_OTHER : kind;
+        }
+        return sniff ? sniff(file) : KIND_OTHER;
+    }
+
+    private static boolean startsWith(byte[] header, int length, int offset,
+                                      String magic) {
+        if (offset + magic.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length(); i++) {
+            if (header[offset + i] != (byte) magic.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWith(byte[] header, int length,
+                                      int... magic) {
+        if (magic.length > length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((header[i] & 0xff) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Classifies file by the signature its format starts with.
+     */
+    static int sniff(File file) {
+        byte[] header = new byte[SNIFF_LENGTH];
+        int length = 0;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int read;
+            while (length < header.length &&
+                   (read = in.read(header, length,
+                                   header.length - length)) > 0) {
+                length += read;
+            }
+        }
+        catch (IOException ex) {
+            // Unreadable, so the scanner couldn't index it either.
+            return KIND_OTHER;
+        }
+        finally {
+            if (in != null) {
+                try {
+                    in.close();
+                }
+                catch (IOException ex) {
+                    // Already read.
+                }
+            }
+        }
+        return sniff(header, length);
+    }
+
+    static int sniff(byte[] header, int length) {
+        if (startsWith(header, length, 0xff, 0xd8, 0xff) ||
+                startsWith(header, length, 0x89, 'P', 'N', 'G') ||
+                startsWith(header, length, 0, "GIF8") ||
+                startsWith(header, length, 0, "BM") ||
+                startsWith(header, length, 0, "ID3") ||
+                startsWith(header, length, 0, "fLaC") ||
+                startsWith(header, length, 0, "OggS") ||
+                startsWith(header, length, 0, "MThd") ||
+                startsWith(header, length, 0, "#!AMR") ||
+                startsWith(header, length, 0, "#EXTM3U") ||
+                // Matroska and WebM
+                startsWith(header, length, 0x1a, 0x45, 0xdf, 0xa3) ||
+                // ASF, WMA and WMV
+                startsWith(header, length, 0x30, 0x26, 0xb2, 0x75) ||
+                // MP4, 3GP, M4A, HEIF and friends
+                startsWith(header, length, 4, "ftyp")) {
+            return KIND_MEDIA;
+        }
+        if (startsWith(header, length, 0, "RIFF") &&
+                (startsWith(header, length, 8, "WAVE") ||
+                 startsWith(header, length, 8, "WEBP") ||
+                 startsWith(header, length, 8, "AVI "))) {
+            return KIND_MEDIA;
+        }
+        // MPEG audio frame sync, for MP3 and AAC without a tag.
+        if (length >= 2 && (header[0] & 0xff) == 0xff &&
+                (header[1] & 0xe0) == 0xe0) {
+            return KIND_MEDIA;
+        }
+        if (startsWith(header, length, 0, "%PDF") ||
+                startsWith(header, length, 0, "{\\rtf")) {
+            return KIND_DOCUMENT;
+        }
+        return KIND_OTHER;
+    }
+}
@@ -0,0 +1,184 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the batched removal of media database rows for files
+ * that no longer exist.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Deletes the database rows of missing files a batch at a time.  Sending
+ * each path to the media scanner just so it drops the row takes a round
+ * trip per file, which after deleting a big folder is most of the scan.
+ *
+ * Once the provider refuses a delete, as it may without write access to
+ * storage, that batch and every later row are handed back to be scanned
+ * instead.  Only used from one thread at a time.
+ */
+public class MissingRowRemover {
+
+    /**
+     * Callback interface saying how each missing file's row was handled.
+     */
+    static interface Listener {
+        // The row is gone, so the scanner needn't see path.
+        void onRemoved(String path);
+        // Left for the media scanner to drop.
+        void onLeftForScanner(String path);
+    }
+
+    /**
+     * Interface for checking a file's volume is mounted read-write before
+     * its row is deleted.
+     */
+    static interface MountCheck {
+        boolean isMounted(File file);
+    }
+
+    // Rows deleted per call, under SQLite's limit of 999 bound arguments.
+    static final int DEFAULT_BATCH_SIZE = 500;
+
+    MediaIndex mIndex;
+    Listener mListener;
+    MountCheck mMountCheck;
+    ScanMetrics mMetrics = new ScanMetrics();
+
+    long[] mIds;
+    String[] mPaths;
+    int mPending = 0;
+    boolean mRefused = false;
+    int mRemovedCount = 0;
+
+    public MissingRowRemover(MediaIndex index, int batchSize,
+                             Listener listener) {
+        mIndex = index;
+        mListener = listener;
+        mIds = new long[Math.max(1, batchSize)];
+        mPaths = new String[mIds.length];
+    }
+
+    public void setMetrics(ScanMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    // Without one, every volume is taken to be mounted.
+    public void setMountCheck(MountCheck mountCheck) {
+        mMountCheck = mountCheck;
+    }
+
+    /**
+     * Whether the provider has refused a delete, leaving every row since
+     * to the scanner.
+     */
+    public boolean isRefused() {
+        return mRefused;
+    }
+
+    public int getRemovedCount() {
+        return mRemovedCount;
+    }
+
+    /**
+     * Queues the row of a file found missing, deleting a batch once full.
+     */
+    public void add(long id, String path) {
+        if (mRefused) {
+            mListener.onLeftForScanner(path);
+            return;
+        }
+        mIds[mPending] = id;
+        mPaths[mPending] = path;
+        mPending++;
+        if (mPending == mIds.length) {
+            flush();
+        }
+    }
+
+    /**
+     * Deletes whatever rows are queued.
+     */
+    public void flush() {
+        int count = mPending;
+        mPending = 0;
+        if (count == 0) {
+            return;
+        }
+        // Older providers delete the file along with the row, so a file
+        // that came back since it was classified goes to the scanner.  So
+        // does everything on a volume that isn't mounted, which could be
+        // coming back at any moment.  Rows arrive in path order, so the
+        // answer for a folder holds for the rows after it in the batch.
+        long[] ids = new long[count];
+        String[] paths = new String[count];
+        int kept = 0;
+        File checkedFolder = null;
+        boolean mounted = true;
+        for (int i = 0; i < count; i++) {
+            File file = new File(mPaths[i]);
+            File folder = file.getAbsoluteFile().getParentFile();
+            if (mMountCheck != null && folder != null &&
+                    !folder.equals(checkedFolder)) {
+                checkedFolder = folder;
+                mounted = mMountCheck.isMounted(folder);
+            }
+            mMetrics.increment(ScanMetrics.Counter.STAT_CALLS);
+            if (!mounted || file.exists()) {
+                mListener.onLeftForScanner(mPaths[i]);
+            }
+            else {
+                ids[kept] = mIds[i];
+                paths[kept] = mPaths[i];
+                kept++;
+            }
+            mPaths[i] = null;
+        }
+        if (kept == 0) {
+            return;
+        }
+        if (kept < count) {
+            long[] trimmed = new long[kept];
+            System.arraycopy(ids, 0, trimmed, 0, kept);
+            ids = trimmed;
+        }
+        int deleted = 0;
+        try {
+            deleted = mIndex.deleteRows(ids);
+        }
+        catch (RuntimeException ex) {
+            Log.w("SDScanner", "Could not delete missing files' rows", ex);
+        }
+        if (deleted == 0) {
+            // Refused outright, or silently ignored.
+            mRefused = true;
+        }
+        mMetrics.add(ScanMetrics.Counter.ROWS_DELETED, deleted);
+        mRemovedCount += deleted;
+        for (int i = 0; i < kept; i++) {
+            // Fewer deleted than asked can't say which rows stayed, so the
+            // scanner sees them all; it finds nothing to do for the rest.
+            if (deleted == kept) {
+                mListener.onRemoved(paths[i]);
+            }
+            else {
+                mListener.onLeftForScanner(paths[i]);
+            }
+        }
+    }
+}
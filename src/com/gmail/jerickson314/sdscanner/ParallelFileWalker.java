@@ -0,0 +1,426 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the directory walker used to build the initial list of
+ * files, spreading subdirectories across a small pool of threads.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ParallelFileWalker {
+
+    /**
+     * Callback interface used to report folders that could not be listed,
+     * and each path as it is added to the results.  May be called from any
+     * walker thread.
+     */
+    static interface Listener {
+        void onSkippedFolder(File folder);
+        void onPathAdded(String path);
+    }
+
+    static final int DEFAULT_THREADS =
+            Math.max(2, Runtime.getRuntime().availableProcessors());
+    // For SD cards and USB drives, which slow down rather than speed up
+    // with many requests outstanding.
+    static final int REMOVABLE_THREADS = 2;
+
+    private static final String[] NO_SUBDIRS = {};
+
+    ScanParameters mScanParameters;
+    PathList mResults;
+    // mResults, when it can report repeats.
+    PathSet mResultSet;
+    // Folders reached, when mResults can't report repeats.
+    PathSet mFolders;
+    // Receives the mtime of each file, or null.
+    StatCache mStatCache;
+    Listener mListener;
+    int mThreads;
+    boolean mLowStat;
+    // Index from the last successful scan, or null to list everything.
+    ScanIndex mPreviousIndex;
+    // Index being built by this walk, or null if not wanted.
+    ScanIndex mNextIndex;
+    AtomicInteger mUnchangedDirectories = new AtomicInteger();
+    ScanMetrics mMetrics = new ScanMetrics();
+
+    ExecutorService mExecutor;
+    // Number of directories queued or being listed.  The walk is done when
+    // this drops to zero.
+    AtomicInteger mPending = new AtomicInteger();
+    final Object mDoneLock = new Object();
+    volatile boolean mCancelled = false;
+
+    /**
+     * @param results Receives canonical paths.  If a PathSet, its add()
+     *                doubles as the symlink loop check; otherwise a folder
+     *                set is kept for it.
+     */
+    public ParallelFileWalker(ScanParameters scanParameters,
+                              PathList results, int threads,
+                              Listener listener) {
+        mScanParameters = scanParameters;
+        mResults = results;
+        if (results instanceof PathSet) {
+            mResultSet = (PathSet) results;
+        }
+        else {
+            mFolders = new PathSet();
+        }
+        mThreads = threads;
+        mListener = listener;
+        mLowStat = scanParameters.getLowStatWalk();
+    }
+
+    /**
+     * Enables incremental walking.  Only used in low-stat mode.
+     *
+     * @param previousIndex Directories unchanged since this index was built
+     *                      are not listed again; may be null.
+     * @param nextIndex     Receives an entry for every directory reached.
+     */
+    public void setScanIndexes(ScanIndex previousIndex, ScanIndex nextIndex) {
+        mPreviousIndex = previousIndex;
+        mNextIndex = nextIndex;
+    }
+
+    /**
+     * Checks folders against folders for symlink loops, rather than relying
+     * on results, for results that spill to disk and so can't tell whether
+     * a path was already added.  Walkers of one scan should share it;
+     * otherwise each keeps its own.
+     */
+    public void setFolderSet(PathSet folders) {
+        mFolders = folders;
+    }
+
+    /**
+     * Records each walked file's mtime in statCache, from the stat that
+     * tells it from a folder.
+     */
+    public void setStatCache(StatCache statCache) {
+        mStatCache = statCache;
+    }
+
+    public void setMetrics(ScanMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    public int getUnchangedDirectories() {
+        return mUnchangedDirectories.get();
+    }
+
+    /**
+     * Stops the walk.  Folders already being listed finish, nothing more
+     * is listed, and walk() returns promptly with partial results.  May be
+     * called from any thread, before or during walk().
+     */
+    public void cancel() {
+        mCancelled = true;
+        synchronized (mDoneLock) {
+            if (mExecutor != null) {
+                mExecutor.shutdownNow();
+            }
+            mDoneLock.notifyAll();
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public void walk(File root) throws IOException, InterruptedException {
+        if (mCancelled || (!mLowStat && !visit(root))) {
+            return;
+        }
+        synchronized (mDoneLock) {
+            // Checked under the lock, so cancel() can't miss the executor.
+            if (mCancelled) {
+                return;
+            }
+            mExecutor = Executors.newFixedThreadPool(mThreads);
+        }
+        try {
+            enqueue(root);
+            synchronized (mDoneLock) {
+                while (mPending.get() > 0 && !mCancelled) {
+                    mDoneLock.wait();
+                }
+            }
+        }
+        finally {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    // Returns true if file is a directory that should be listed.
+    private boolean visit(File file) throws IOException {
+        // shouldScan() and the checks below each cost one lookup.
+        mMetrics.add(ScanMetrics.Counter.STAT_CALLS, 2);
+        if (!mScanParameters.shouldScan(file, false)) {
+            // If we got here, the file was either outside the scan
+            // directory, or was an empty directory.
+            return false;
+        }
+        boolean directory = isDirectory(file);
+        if (!directory && !mScanParameters.isWantedFile(file)) {
+            mMetrics.increment(ScanMetrics.Counter.FILES_FILTERED);
+            return false;
+        }
+        if (!(directory ? addFolder(file.getPath()) :
+                          addResult(file.getPath()))) {
+            // Avoid infinite recursion caused by symlinks.
+            // If the path was already reached, add() will return false.
+            return false;
+        }
+        // Only recurse downward if not blocked by nomedia.
+        if (!directory) {
+            return false;
+        }
+        mMetrics.increment(ScanMetrics.Counter.STAT_CALLS);
+        return !new File(file, ".nomedia").exists();
+    }
+
+    private boolean isDirectory(File file) {
+        return mStatCache == null ? file.isDirectory() :
+                                    mStatCache.statEntry(file);
+    }
+
+    private boolean addFolder(String path) {
+        if (mFolders != null && !mFolders.add(path)) {
+            return false;
+        }
+        return addResult(path) || mFolders != null;
+    }
+
+    private boolean addResult(String path) {
+        if (mResultSet == null) {
+            mResults.addPath(path);
+        }
+        else if (!mResultSet.add(path)) {
+            return false;
+        }
+        mListener.onPathAdded(path);
+        return true;
+    }
+
+    private void finishedOne() {
+        if (mPending.decrementAndGet() == 0) {
+            synchronized (mDoneLock) {
+                mDoneLock.notifyAll();
+            }
+        }
+    }
+
+    private void enqueue(final File directory) {
+        if (mCancelled) {
+            return;
+        }
+        mPending.incrementAndGet();
+        try {
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (mCancelled) {
+                            return;
+                        }
+                        if (mLowStat) {
+                            listDirectoryLowStat(directory);
+                        }
+                        else {
+                            listDirectory(directory);
+                        }
+                    }
+                    finally {
+                        finishedOne();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException ex) {
+            // Shut down by cancel() in the meantime.
+            finishedOne();
+        }
+    }
+
+    private void listDirectory(File directory) {
+        File[] files = directory.listFiles();
+        mMetrics.increment(ScanMetrics.Counter.DIRECTORIES_LISTED);
+        if (files == null) {
+            mListener.onSkippedFolder(directory);
+            return;
+        }
+        // One getCanonicalFile() each.
+        mMetrics.add(ScanMetrics.Counter.STAT_CALLS, files.length);
+        for (File nextFile : files) {
+            if (mCancelled) {
+                return;
+            }
+            // visit() checks the canonical path too, but this costs no
+            // stat.
+            if (mScanParameters.isExcludedEntry(nextFile.getPath())) {
+                continue;
+            }
+            try {
+                File canonical = nextFile.getCanonicalFile();
+                if (visit(canonical)) {
+                    enqueue(canonical);
+                }
+            }
+            catch (IOException ex) {
+                // Skip just this entry rather than the whole walk.
+            }
+        }
+    }
+
+    // Low-stat variant of listDirectory().  Each directory is listed exactly
+    // once, and that single listing serves the empty directory check, the
+    // .nomedia check and the recursion.  Only directories are canonicalized
+    // (they are all we need for symlink loop protection), and plain files
+    // below an in-scope directory are in scope without walking up to the
+    // root.  Scope and emptiness for a directory are checked by the task
+    // that lists it, before it is added to the results.
+    private void listDirectoryLowStat(File directory) {
+        String path = directory.getPath();
+        long mtime = 0;
+        if (mNextIndex != null) {
+            mtime = directory.lastModified();
+            mMetrics.increment(ScanMetrics.Counter.STAT_CALLS);
+            ScanIndex.Entry unchanged = mPreviousIndex == null ? null :
+                    mPreviousIndex.getUnchanged(path, mtime);
+            if (unchanged != null) {
+                revisitUnchanged(directory, unchanged);
+                return;
+            }
+        }
+        String[] names = directory.list();
+        mMetrics.increment(ScanMetrics.Counter.DIRECTORIES_LISTED);
+        if (names == null) {
+            // Unreadable, or an I/O error.
+            mListener.onSkippedFolder(directory);
+            return;
+        }
+        if (names.length == 0) {
+            if (mNextIndex != null) {
+                mNextIndex.put(path, new ScanIndex.Entry(
+                        mtime, 0, 0, false, NO_SUBDIRS));
+            }
+            Log.w("SDScanner", "Scan of empty directory " + path +
+                  " skipped to avoid bug.");
+            return;
+        }
+        if (!addFolder(directory.getPath())) {
+            // Already reached through a symlink.
+            return;
+        }
+        for (String name : names) {
+            if (name.equals(".nomedia")) {
+                // Only recurse downward if not blocked by nomedia.
+                if (mNextIndex != null) {
+                    mNextIndex.put(path, new ScanIndex.Entry(
+                            mtime, names.length, 0, true, NO_SUBDIRS));
+                }
+                return;
+            }
+        }
+        ArrayList<String> subdirs = new ArrayList<String>();
+        // Counted here and added once, to keep walker threads off the
+        // shared counter.
+        int statCalls = names.length;
+        int files = 0;
+        int filtered = 0;
+        for (String name : names) {
+            if (mCancelled) {
+                // The index entry is left out, but a cancelled walk's
+                // index is never saved.
+                return;
+            }
+            File nextFile = new File(directory, name);
+            // Checked before the stat, so an excluded folder costs nothing
+            // and is never listed.
+            if (mScanParameters.isExcludedEntry(nextFile.getPath())) {
+                statCalls--;
+                continue;
+            }
+            if (!isDirectory(nextFile)) {
+                if (mScanParameters.isWantedFile(nextFile)) {
+                    addResult(nextFile.getPath());
+                    files++;
+                }
+                else {
+                    filtered++;
+                }
+                continue;
+            }
+            statCalls++;
+            try {
+                File canonical = nextFile.getCanonicalFile();
+                // A symlink may point outside the scan directory, or into
+                // an excluded one.
+                if (mScanParameters.isInScope(canonical.getPath(), false) &&
+                        (canonical.getPath().equals(nextFile.getPath()) ||
+                         !mScanParameters.isExcluded(canonical.getPath()))) {
+                    subdirs.add(canonical.getPath());
+                    enqueue(canonical);
+                }
+            }
+            catch (IOException ex) {
+                // Skip just this entry rather than the whole walk.
+            }
+        }
+        mMetrics.add(ScanMetrics.Counter.STAT_CALLS, statCalls);
+        mMetrics.add(ScanMetrics.Counter.FILES_FILTERED, filtered);
+        if (mNextIndex != null) {
+            mNextIndex.put(path, new ScanIndex.Entry(
+                    mtime, names.length, files, false,
+                    subdirs.toArray(new String[subdirs.size()])));
+        }
+    }
+
+    // A directory whose mtime has not moved has the same entries as when it
+    // was indexed, so its files are either already in the media database or
+    // will be picked up by the database pass if modified in place.  (The
+    // caller checks the database hasn't been cleared since; see
+    // ScanIndex.matchesDatabase().)  Only the subdirectories need visiting,
+    // and those come from the index rather than a fresh listing.
+    private void revisitUnchanged(File directory, ScanIndex.Entry entry) {
+        mNextIndex.put(directory.getPath(), entry);
+        mUnchangedDirectories.incrementAndGet();
+        if (entry.getChildCount() == 0) {
+            // Empty directories are skipped as above.
+            return;
+        }
+        if (!addFolder(directory.getPath())) {
+            return;
+        }
+        if (entry.getNomedia()) {
+            return;
+        }
+        for (String subdir : entry.getSubdirs()) {
+            enqueue(new File(subdir));
+        }
+    }
+}
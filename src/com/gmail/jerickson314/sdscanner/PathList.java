@@ -0,0 +1,52 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the interface through which a scan builds its list
+ * of files, whether held in memory or spilled to disk.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.util.Iterator;
+
+/**
+ * Sorted list of distinct paths, with only what a spilled list can do
+ * exactly: no lookups, and no word on whether a change did anything.
+ * Code that needs those checks whether it was given a PathSet.
+ */
+public interface PathList {
+
+    /**
+     * Adds path, if not already present.
+     */
+    void addPath(String path);
+
+    /**
+     * Removes path, if present.
+     */
+    void removePath(String path);
+
+    int size();
+
+    /**
+     * Returns the paths in PathSet order, as they were when it was called.
+     */
+    Iterator<String> sortedIterator();
+
+    /**
+     * Empties the list, releasing any storage it holds.
+     */
+    void clear();
+}
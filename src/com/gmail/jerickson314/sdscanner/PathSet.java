@@ -0,0 +1,568 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains a compact sorted set of paths, used to hold the list
+ * of files to scan from the walk through to the media scanner.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+/**
+ * Sorted set of paths stored front-coded: paths are kept in blocks of
+ * BLOCK_SIZE, and each path after the first in a block stores only the
+ * characters that differ from its predecessor.  Sibling files share long
+ * prefixes, so this is several times smaller than a TreeSet of Strings.
+ *
+ * Recent additions are kept in a small TreeSet, and once MAX_PENDING of
+ * them build up they are coded as a new run.  Runs hold disjoint paths and
+ * shrink geometrically from oldest to newest; whenever the newest is at
+ * least half the size of the one before, the two are merged.  So there
+ * are only a logarithmic number of runs, and each path is recoded a
+ * logarithmic number of times, however large the set grows.  Removals of
+ * coded paths are recorded in a bit set per run until it is next merged.
+ * Iteration and index lookups (get() and indexOf()) first merge everything
+ * into a single run.
+ *
+ * Paths are ordered by Unicode code point, which is the order SQLite's
+ * default BINARY collation gives for UTF-8 text, so the set can be merged
+ * directly against a media database cursor sorted on _data.
+ *
+ * All methods are synchronized, so the set may be filled from several
+ * threads.  Iterators see the set as it was when they were created.
+ */
+public class PathSet extends AbstractSet<String> implements PathList {
+
+    static final int BLOCK_SIZE = 16;
+
+    // Additions held as Strings before being coded as a run.
+    static final int MAX_PENDING = 4096;
+
+    // One sorted, front-coded run of paths.
+    private static class Run {
+        // Each entry is stored as [prefix length][suffix length][suffix...].
+        // The first entry of each block has a prefix length of zero.
+        // Arrays are never modified once built, so iterators can keep
+        // using them.
+        char[] mData;
+        int[] mBlockOffsets;
+        int mSize;
+        BitSet mRemoved = new BitSet();
+        int mRemovedCount = 0;
+
+        Run(char[] data, int[] blockOffsets, int size) {
+            mData = data;
+            mBlockOffsets = blockOffsets;
+            mSize = size;
+        }
+
+        int liveSize() {
+            return mSize - mRemovedCount;
+        }
+
+        // Returns the position of path, removed or not, or a negative
+        // number if the run never held it.
+        int find(String path) {
+            return codedIndexOf(mData, mBlockOffsets, mSize, path);
+        }
+    }
+
+    // Oldest and largest first.
+    private ArrayList<Run> mRuns = new ArrayList<Run>();
+
+    static final Comparator<String> PATH_ORDER = new Comparator<String>() {
+        public int compare(String a, String b) {
+            return comparePaths(a, b);
+        }
+    };
+
+    private TreeSet<String> mPending = new TreeSet<String>(PATH_ORDER);
+
+    /**
+     * Compares two paths by code point.  This differs from
+     * String.compareTo() only when surrogate pairs meet characters from
+     * U+E000 to U+FFFF.
+     */
+    public static int comparePaths(String a, String b) {
+        int limit = Math.min(a.length(), b.length());
+        for (int i = 0; i < limit; i++) {
+            char x = a.charAt(i);
+            char y = b.charAt(i);
+            if (x != y) {
+                return codePointOrder(x) - codePointOrder(y);
+            }
+        }
+        return a.length() - b.length();
+    }
+
+    // Moves surrogates above U+E000..U+FFFF so UTF-16 code units sort in
+    // code point order.
+    private static int codePointOrder(char c) {
+        if (c >= 0xD800) {
+            return c >= 0xE000 ? c - 0x800 : c + 0x2000;
+        }
+        return c;
+    }
+
+    @Override
+    public synchronized int size() {
+        int size = mPending.size();
+        for (int i = 0; i < mRuns.size(); i++) {
+            size += mRuns.get(i).liveSize();
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized boolean contains(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        String path = (String) o;
+        if (mPending.contains(path)) {
+            return true;
+        }
+        for (int i = 0; i < mRuns.size(); i++) {
+            Run run = mRuns.get(i);
+            int index = run.find(path);
+            if (index >= 0) {
+                return !run.mRemoved.get(index);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized boolean add(String path) {
+        if (path.length() > Character.MAX_VALUE) {
+            throw new IllegalArgumentException("Path too long: " + path);
+        }
+        // A run that ever held path takes it back, keeping runs disjoint.
+        for (int i = 0; i < mRuns.size(); i++) {
+            Run run = mRuns.get(i);
+            int index = run.find(path);
+            if (index >= 0) {
+                if (!run.mRemoved.get(index)) {
+                    return false;
+                }
+                run.mRemoved.clear(index);
+                run.mRemovedCount--;
+                return true;
+            }
+        }
+        if (!mPending.add(path)) {
+            return false;
+        }
+        if (mPending.size() >= MAX_PENDING) {
+            flushPending();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean remove(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        String path = (String) o;
+        if (mPending.remove(path)) {
+            return true;
+        }
+        for (int i = 0; i < mRuns.size(); i++) {
+            Run run = mRuns.get(i);
+            int index = run.find(path);
+            if (index >= 0) {
+                if (run.mRemoved.get(index)) {
+                    return false;
+                }
+                run.mRemoved.set(index);
+                run.mRemovedCount++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void clear() {
+        mRuns.clear();
+        mPending.clear();
+    }
+
+    public void addPath(String path) {
+        add(path);
+    }
+
+    public void removePath(String path) {
+        remove(path);
+    }
+
+    public Iterator<String> sortedIterator() {
+        return iterator();
+    }
+
+    /**
+     * Returns the path at position index in sorted order.
+     */
+    public synchronized String get(int index) {
+        compact();
+        int size = mRuns.isEmpty() ? 0 : mRuns.get(0).mSize;
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index +
+                                                ", size " + size);
+        }
+        Run run = mRuns.get(0);
+        char[] scratch = new char[64];
+        int block = index / BLOCK_SIZE;
+        int offset = run.mBlockOffsets[block];
+        int length = 0;
+        for (int i = block * BLOCK_SIZE; ; i++) {
+            int prefix = run.mData[offset];
+            int suffix = run.mData[offset + 1];
+            length = prefix + suffix;
+            if (length > scratch.length) {
+                char[] bigger = new char[Math.max(length, scratch.length * 2)];
+                System.arraycopy(scratch, 0, bigger, 0, prefix);
+                scratch = bigger;
+            }
+            System.arraycopy(run.mData, offset + 2, scratch, prefix, suffix);
+            offset += 2 + suffix;
+            if (i == index) {
+                break;
+            }
+        }
+        return new String(scratch, 0, length);
+    }
+
+    /**
+     * Returns the position of path in sorted order, or -1 if absent.
+     */
+    public synchronized int indexOf(String path) {
+        compact();
+        if (mRuns.isEmpty()) {
+            return -1;
+        }
+        int index = mRuns.get(0).find(path);
+        return index >= 0 ? index : -1;
+    }
+
+    /**
+     * Folds pending additions, removals and every run into a single run.
+     */
+    public synchronized void compact() {
+        if (!mPending.isEmpty()) {
+            mRuns.add(code(mPending.iterator(), mPending.size(), 0));
+            mPending.clear();
+        }
+        while (mRuns.size() > 1) {
+            mergeLastRuns();
+        }
+        if (!mRuns.isEmpty() && mRuns.get(0).mRemovedCount > 0) {
+            mRuns.set(0, merge(mRuns.get(0), null));
+        }
+    }
+
+    /**
+     * Returns a read-only view of the set's positions as it is now, which
+     * can be searched from any number of threads without locking.
+     */
+    public synchronized Lookup lookup() {
+        compact();
+        if (mRuns.isEmpty()) {
+            return new Lookup(new char[0], new int[0], 0);
+        }
+        Run run = mRuns.get(0);
+        return new Lookup(run.mData, run.mBlockOffsets, run.mSize);
+    }
+
+    /**
+     * The coded paths of a compacted set, unaffected by later changes.
+     */
+    public static class Lookup {
+        final char[] mData;
+        final int[] mBlockOffsets;
+        final int mSize;
+
+        Lookup(char[] data, int[] blockOffsets, int size) {
+            mData = data;
+            mBlockOffsets = blockOffsets;
+            mSize = size;
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        /**
+         * Returns the position of path in sorted order, or -1 if absent.
+         */
+        public int indexOf(String path) {
+            int index = codedIndexOf(mData, mBlockOffsets, mSize, path);
+            return index >= 0 ? index : -1;
+        }
+    }
+
+    @Override
+    public synchronized Iterator<String> iterator() {
+        compact();
+        if (mRuns.isEmpty()) {
+            return new CodedIterator(new char[0], 0);
+        }
+        Run run = mRuns.get(0);
+        return new CodedIterator(run.mData, run.mSize);
+    }
+
+    // Codes the pending additions as the newest run, then merges runs
+    // until each is less than half the size of the one before.
+    private void flushPending() {
+        mRuns.add(code(mPending.iterator(), mPending.size(), 0));
+        mPending.clear();
+        while (mRuns.size() > 1 &&
+               mRuns.get(mRuns.size() - 1).liveSize() * 2 >=
+               mRuns.get(mRuns.size() - 2).liveSize()) {
+            mergeLastRuns();
+        }
+    }
+
+    private void mergeLastRuns() {
+        Run newer = mRuns.remove(mRuns.size() - 1);
+        Run older = mRuns.remove(mRuns.size() - 1);
+        mRuns.add(merge(older, newer));
+    }
+
+    private static Run code(Iterator<String> paths, int size,
+                            int capacityHint) {
+        Builder builder = new Builder(size, capacityHint);
+        while (paths.hasNext()) {
+            builder.append(paths.next());
+        }
+        return new Run(builder.getData(), builder.getBlockOffsets(), size);
+    }
+
+    // Merges the live paths of two disjoint runs into a new one.  b may be
+    // null, to just drop a's removed paths.
+    private Run merge(Run a, Run b) {
+        int newSize = a.liveSize() + (b == null ? 0 : b.liveSize());
+        Builder builder = new Builder(newSize, a.mData.length +
+                                      (b == null ? 0 : b.mData.length));
+        CodedIterator codedA = new CodedIterator(a.mData, a.mSize);
+        CodedIterator codedB = b == null ? new CodedIterator(new char[0], 0) :
+                                           new CodedIterator(b.mData, b.mSize);
+        String nextA = nextLive(codedA, a);
+        String nextB = b == null ? null : nextLive(codedB, b);
+        while (nextA != null || nextB != null) {
+            if (nextB == null ||
+                    (nextA != null && comparePaths(nextA, nextB) < 0)) {
+                builder.append(nextA);
+                nextA = nextLive(codedA, a);
+            }
+            else {
+                builder.append(nextB);
+                nextB = nextLive(codedB, b);
+            }
+        }
+        return new Run(builder.getData(), builder.getBlockOffsets(), newSize);
+    }
+
+    private static String nextLive(CodedIterator coded, Run run) {
+        while (coded.hasNext()) {
+            int index = coded.nextIndex();
+            String path = coded.next();
+            if (!run.mRemoved.get(index)) {
+                return path;
+            }
+        }
+        return null;
+    }
+
+    // Binary search over the first entry of each block, then a linear scan
+    // within the block.  Returns -(insertion point) - 1 if absent.
+    private static int codedIndexOf(char[] data, int[] blockOffsets,
+                                    int size, String path) {
+        if (size == 0) {
+            return -1;
+        }
+        int low = 0;
+        int high = (size - 1) / BLOCK_SIZE;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            int offset = blockOffsets[mid];
+            if (compare(data, offset + 2, data[offset + 1], path) <= 0) {
+                low = mid;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        // Walk the block without rebuilding entries.  match is how many
+        // characters the previous entry shares with path; an entry that
+        // shares more with its predecessor still differs from path at the
+        // same place, and one that shares less has passed path.
+        int offset = blockOffsets[low];
+        int end = Math.min(size, (low + 1) * BLOCK_SIZE);
+        int match = 0;
+        for (int i = low * BLOCK_SIZE; i < end; i++) {
+            int prefix = data[offset];
+            int length = prefix + data[offset + 1];
+            int start = offset + 2 - prefix;
+            offset += 2 + data[offset + 1];
+            if (prefix > match) {
+                continue;
+            }
+            if (prefix < match) {
+                return -i - 1;
+            }
+            int limit = Math.min(length, path.length());
+            while (match < limit && data[start + match] == path.charAt(match)) {
+                match++;
+            }
+            if (match == limit) {
+                if (length == path.length()) {
+                    return i;
+                }
+                if (length > path.length()) {
+                    return -i - 1;
+                }
+            }
+            else if (codePointOrder(data[start + match]) >
+                     codePointOrder(path.charAt(match))) {
+                return -i - 1;
+            }
+        }
+        return -end - 1;
+    }
+
+    private static int compare(char[] chars, int offset, int length,
+                               String path) {
+        int limit = Math.min(length, path.length());
+        for (int i = 0; i < limit; i++) {
+            char a = chars[offset + i];
+            char b = path.charAt(i);
+            if (a != b) {
+                return codePointOrder(a) - codePointOrder(b);
+            }
+        }
+        return length - path.length();
+    }
+
+    private static class Builder {
+        char[] mData;
+        int mLength = 0;
+        int[] mBlockOffsets;
+        int mCount = 0;
+        String mPrevious = "";
+
+        public Builder(int size, int capacityHint) {
+            mData = new char[Math.max(16, capacityHint)];
+            mBlockOffsets = new int[(size + BLOCK_SIZE - 1) / BLOCK_SIZE];
+        }
+
+        public void append(String path) {
+            int prefix = 0;
+            if (mCount % BLOCK_SIZE == 0) {
+                mBlockOffsets[mCount / BLOCK_SIZE] = mLength;
+            }
+            else {
+                int limit = Math.min(mPrevious.length(), path.length());
+                while (prefix < limit &&
+                       mPrevious.charAt(prefix) == path.charAt(prefix)) {
+                    prefix++;
+                }
+            }
+            int suffix = path.length() - prefix;
+            if (mLength + 2 + suffix > mData.length) {
+                char[] bigger = new char[Math.max(mLength + 2 + suffix,
+                                                  mData.length * 3 / 2)];
+                System.arraycopy(mData, 0, bigger, 0, mLength);
+                mData = bigger;
+            }
+            mData[mLength++] = (char) prefix;
+            mData[mLength++] = (char) suffix;
+            path.getChars(prefix, path.length(), mData, mLength);
+            mLength += suffix;
+            mPrevious = path;
+            mCount++;
+        }
+
+        public char[] getData() {
+            if (mLength == mData.length) {
+                return mData;
+            }
+            char[] trimmed = new char[mLength];
+            System.arraycopy(mData, 0, trimmed, 0, mLength);
+            return trimmed;
+        }
+
+        public int[] getBlockOffsets() {
+            return mBlockOffsets;
+        }
+    }
+
+    private class CodedIterator implements Iterator<String> {
+        char[] mIterData;
+        int mIterSize;
+        int mIndex = 0;
+        int mOffset = 0;
+        char[] mScratch = new char[64];
+        String mLast;
+
+        public CodedIterator(char[] data, int size) {
+            mIterData = data;
+            mIterSize = size;
+        }
+
+        public boolean hasNext() {
+            return mIndex < mIterSize;
+        }
+
+        public int nextIndex() {
+            return mIndex;
+        }
+
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int prefix = mIterData[mOffset];
+            int suffix = mIterData[mOffset + 1];
+            if (prefix + suffix > mScratch.length) {
+                char[] bigger = new char[Math.max(prefix + suffix,
+                                                  mScratch.length * 2)];
+                System.arraycopy(mScratch, 0, bigger, 0, prefix);
+                mScratch = bigger;
+            }
+            System.arraycopy(mIterData, mOffset + 2, mScratch, prefix, suffix);
+            mOffset += 2 + suffix;
+            mIndex++;
+            mLast = new String(mScratch, 0, prefix + suffix);
+            return mLast;
+        }
+
+        public void remove() {
+            if (mLast == null) {
+                throw new IllegalStateException();
+            }
+            PathSet.this.remove(mLast);
+            mLast = null;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the merge of the walked file list against media
+ * database rows, deciding which files the media scanner needs to see.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Merges media database rows, fed in _data order, against the walked
+ * files in a single pass.  Rows must arrive sorted in PathSet order; a row
+ * that arrives out of order is still handled correctly, just by lookup
+ * rather than by merging.
+ *
+ * The walked list is updated in place: up-to-date files are removed, and
+ * changed or missing files found only through the database are added.
+ *
+ * Paths can only be looked up when the walked list is a PathSet.  Without
+ * lookups, out-of-order rows are handled as database-only rows, which
+ * costs a stat but gives the same result, and once paths are aliased
+ * every unmatched walked file is counted as new.
+ */
+public class Reconciler implements MediaIndex.RowHandler {
+
+    /**
+     * Callback interface reporting how each file was classified.
+     */
+    static interface Listener {
+        // Walked file with no database row.
+        void onNewOnDisk(String path);
+        // File whose database row is older than the file.
+        void onStale(String path);
+        // Database row whose file no longer exists.
+        void onMissing(long id, String path);
+    }
+
+    PathList mFiles;
+    // mFiles, when it supports lookups.
+    PathSet mLookups;
+    ScanParameters mScanParameters;
+    Listener mListener;
+    ScanMetrics mMetrics = new ScanMetrics();
+    StatCache mStatCache;
+
+    Iterator<String> mWalked;
+    String mNextWalked;
+    String mLastData;
+    // Set once a database path canonicalizes to a different path, since the
+    // walk iterator may then still hold paths already handled.
+    boolean mAliased = false;
+
+    int mNewCount = 0;
+    int mStaleCount = 0;
+    int mMissingCount = 0;
+    int mUpToDateCount = 0;
+
+    public Reconciler(PathList files, ScanParameters scanParameters,
+                      Listener listener) {
+        mFiles = files;
+        mLookups = files instanceof PathSet ? (PathSet) files : null;
+        mScanParameters = scanParameters;
+        mListener = listener;
+        mWalked = files.sortedIterator();
+        advanceWalked();
+    }
+
+    public void setMetrics(ScanMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Takes walked files' mtimes from statCache rather than statting them.
+     */
+    public void setStatCache(StatCache statCache) {
+        mStatCache = statCache;
+    }
+
+    public int getNewCount() {
+        return mNewCount;
+    }
+
+    public int getStaleCount() {
+        return mStaleCount;
+    }
+
+    public int getMissingCount() {
+        return mMissingCount;
+    }
+
+    public int getUpToDateCount() {
+        return mUpToDateCount;
+    }
+
+    private void advanceWalked() {
+        mNextWalked = mWalked.hasNext() ? mWalked.next() : null;
+    }
+
+    private void emitNextWalked() {
+        if (!mAliased || mLookups == null ||
+                mLookups.contains(mNextWalked)) {
+            mNewCount++;
+            mListener.onNewOnDisk(mNextWalked);
+        }
+        advanceWalked();
+    }
+
+    /**
+     * Handles one database row.
+     *
+     * @param dateModified The row's DATE_MODIFIED, in seconds.
+     */
+    public void addRow(long id, String data, long dateModified)
+            throws IOException {
+        if (mLastData != null && PathSet.comparePaths(data, mLastData) < 0) {
+            // Out of order, so the merge can't place it.
+            if (mLookups != null && mLookups.contains(data)) {
+                walkedRow(data, dateModified);
+            }
+            else {
+                databaseOnlyRow(id, data, dateModified);
+            }
+            return;
+        }
+        mLastData = data;
+        // Walked paths sorting before this row have no row of their own.
+        while (mNextWalked != null &&
+               PathSet.comparePaths(mNextWalked, data) < 0) {
+            emitNextWalked();
+        }
+        if (mNextWalked != null && mNextWalked.equals(data)) {
+            advanceWalked();
+            walkedRow(data, dateModified);
+        }
+        else {
+            databaseOnlyRow(id, data, dateModified);
+        }
+    }
+
+    /**
+     * Classifies walked files left after the last row.
+     */
+    public void finish() {
+        while (mNextWalked != null) {
+            emitNextWalked();
+        }
+    }
+
+    // The walk already established the file exists and is in scope, so
+    // only its modification time is needed.
+    private void walkedRow(String path, long dateModified) {
+        if (lastModified(path) / 1000L > dateModified) {
+            mStaleCount++;
+            mListener.onStale(path);
+        }
+        else {
+            // Don't want to waste time scanning an up-to-date file.
+            mUpToDateCount++;
+            mMetrics.increment(ScanMetrics.Counter.ROWS_UP_TO_DATE);
+            mFiles.removePath(path);
+        }
+    }
+
+    private long lastModified(String path) {
+        if (mStatCache != null) {
+            return mStatCache.lastModified(path, mMetrics);
+        }
+        mMetrics.increment(ScanMetrics.Counter.STAT_CALLS);
+        return new File(path).lastModified();
+    }
+
+    private void databaseOnlyRow(long id, String data, long dateModified)
+            throws IOException {
+        File file = new File(data).getCanonicalFile();
+        String path = file.getPath();
+        // Canonicalizing.
+        mMetrics.increment(ScanMetrics.Counter.STAT_CALLS);
+        if (!path.equals(data)) {
+            mAliased = true;
+        }
+        // Walked under its canonical name, so known to exist.
+        long mtime = mStatCache == null ? StatCache.NOT_CACHED :
+                                          mStatCache.getMtime(path);
+        boolean exists;
+        if (mtime != StatCache.NOT_CACHED) {
+            mMetrics.increment(ScanMetrics.Counter.STAT_CACHE_HITS);
+            exists = true;
+        }
+        else {
+            // exists() and lastModified().
+            exists = file.exists();
+            mMetrics.add(ScanMetrics.Counter.STAT_CALLS, exists ? 2 : 1);
+            if (exists) {
+                mtime = file.lastModified();
+            }
+        }
+        if ((!exists || mtime / 1000L > dateModified)
+                && mScanParameters.shouldScan(file, true)) {
+            // Media scanner handles these cases.
+            // Is a set, so OK if already present.
+            mFiles.addPath(path);
+            if (exists) {
+                mStaleCount++;
+                mListener.onStale(path);
+            }
+            else {
+                mMissingCount++;
+                mListener.onMissing(id, path);
+            }
+        }
+        else if (mLookups == null) {
+            // Can't tell whether it was walked under its canonical name,
+            // so just make sure it isn't scanned.
+            mFiles.removePath(path);
+        }
+        else if (mLookups.remove(path)) {
+            // Walked under its canonical name and up to date.
+            mUpToDateCount++;
+            mMetrics.increment(ScanMetrics.Counter.ROWS_UP_TO_DATE);
+        }
+    }
+}
@@ -24,16 +24,12 @@ import android.app.Fragment;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.database.DatabaseUtils;
-import android.media.MediaScannerConnection;
-import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.SystemClock;
-import android.provider.MediaStore;
 import android.util.Log;
 
 import java.io.File;
@@ -42,30 +38,70 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.TreeSet;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ScanFragment extends Fragment {
 
-    private static final String[] MEDIA_PROJECTION =
-        {MediaStore.MediaColumns.DATA,
-         MediaStore.MediaColumns.DATE_MODIFIED};
-
     private static final String[] STAR = {"*"};
 
-    private static final int DB_RETRIES = 3;
+    private static final int DB_ATTEMPTS = 3;
 
     Context mApplicationContext;
 
-    ArrayList<String> mPathNames;
-    TreeSet<File> mFilesToProcess;
-    int mLastGoodProcessedIndex;
+    // Filled by the walk and database passes, then read by index while the
+    // media scanner runs.
+    // A SpillingPathSet when the scan's file list may not fit in memory.
+    PathList mFilesToProcess;
+    // One per root, or null where the walk is not indexed.
+    ArrayList<ScanIndex> mNextScanIndexes;
+    // Counts per volume when scanning several, otherwise null.
+    VolumeProgress mVolumeProgress;
+    ScanSubmitter mScanSubmitter;
+    ScanMetrics mMetrics;
+    // Journal of the running full scan, so it can be resumed if killed.
+    ScanJournal mJournal;
+    // What is left of an interrupted scan, or null.
+    ScanJournal.Resume mResume;
+    boolean mResumeChecked = false;
+    // JSON report of the last completed scan, or null.
+    String mMetricsReport;
+    // JSON report of the last scan if it only planned, or null.
+    String mPlanReport;
+    // Parameters of the running or last scan.
+    ScanParameters mScanParameters;
+    boolean mScanRunning = false;
+    // Preparation of the running scan, or null once it is done.
+    PreprocessTask mPreprocessTask;
+    // Set between a cancel request and the scan actually stopping.
+    boolean mCancelling = false;
+    boolean mKeepCheckpoint;
+
+    // Watch mode state.  mWatchParameters is null when not watching.
+    ScanParameters mWatchParameters;
+    DirectoryWatcher mWatcher;
+    ChangeCoalescer mCoalescer;
+    // Folders waiting for a partial scan, run one at a time.
+    LinkedList<String> mChangedTrees = new LinkedList<String>();
+
+    // How often per-volume counts are shown during a multi-volume walk.
+    static final long VOLUME_PROGRESS_MILLIS = 250;
+
+    // How often subtrees over the watch limit are rescanned.
+    static final long UNWATCHED_RESCAN_MILLIS = 15L * 60 * 1000;
 
     private Handler mHandler = new Handler();
+    private Executor mMainExecutor = new Executor() {
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    };
 
     int mProgressNum;
     UIStringGenerator mProgressText =
             new UIStringGenerator(R.string.progress_unstarted_label);
-    UIStringGenerator mDebugMessages = new UIStringGenerator();
+    DebugLog mDebugMessages = new DebugLog();
     boolean mStartButtonEnabled;
     boolean mHasStarted = false;
 
@@ -75,9 +111,12 @@ public class ScanFragment extends Fragment {
     static interface ScanProgressCallbacks {
         void updateProgressNum(int progressNum);
         void updateProgressText(UIStringGenerator progressText);
-        void updateDebugMessages(UIStringGenerator debugMessages);
+        void updateDebugMessages(DebugLog debugMessages);
         void updatePath(String path);
         void updateStartButtonEnabled(boolean startButtonEnabled);
+        void updateResumeAvailable(int remaining);
+        // The check for an interrupted scan is done; see getResume().
+        void resumeCheckFinished();
         void signalFinished();
     }
 
@@ -106,22 +145,21 @@ public class ScanFragment extends Fragment {
     }
 
     private void addDebugMessage(int resId, String string) {
-        mDebugMessages.addSubGenerator(resId);
-        mDebugMessages.addSubGenerator(string + "\n");
+        mDebugMessages.add(new UIStringGenerator(resId, string + "\n"));
         if (mCallbacks != null) {
             mCallbacks.updateDebugMessages(mDebugMessages);
         }
     }
 
     private void addDebugMessage(String debugMessage) {
-        mDebugMessages.addSubGenerator(debugMessage + "\n");
+        mDebugMessages.add(new UIStringGenerator(debugMessage + "\n"));
         if (mCallbacks != null) {
             mCallbacks.updateDebugMessages(mDebugMessages);
         }
     }
 
     private void resetDebugMessages() {
-        mDebugMessages = new UIStringGenerator();
+        mDebugMessages = new DebugLog();
         if (mCallbacks != null) {
             mCallbacks.updateDebugMessages(mDebugMessages);
         }
@@ -134,6 +172,13 @@ public class ScanFragment extends Fragment {
         }
     }
 
+    private void updateResume(ScanJournal.Resume resume) {
+        mResume = resume;
+        if (mCallbacks != null) {
+            mCallbacks.updateResumeAvailable(getResumeRemaining());
+        }
+    }
+
     private void signalFinished() {
         if (mCallbacks != null) {
             mCallbacks.signalFinished();
@@ -148,7 +193,7 @@ public class ScanFragment extends Fragment {
         return mProgressText;
     }
 
-    public UIStringGenerator getDebugMessages() {
+    public DebugLog getDebugMessages() {
         return mDebugMessages;
     }
 
@@ -160,6 +205,26 @@ public class ScanFragment extends Fragment {
         return mHasStarted;
     }
 
+    public ScanJournal.Resume getResume() {
+        return mResume;
+    }
+
+    public int getResumeRemaining() {
+        return mResume == null ? 0 : mResume.getRemaining().size();
+    }
+
+    public boolean getResumeChecked() {
+        return mResumeChecked;
+    }
+
+    public String getMetricsReport() {
+        return mMetricsReport;
+    }
+
+    public String getPlanReport() {
+        return mPlanReport;
+    }
+
     @Override
     public void onAttach(Activity activity) {
         super.onAttach(activity);
@@ -181,6 +246,14 @@ public class ScanFragment extends Fragment {
 
         // Retain this fragment across configuration changes.
         setRetainInstance(true);
+
+        checkForResume();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        stopWatching();
     }
 
     // Purely for debugging and not normally used, so does not translate
@@ -188,46 +261,247 @@ public class ScanFragment extends Fragment {
     public void listPathNamesOnDebug() {
         StringBuffer listString = new StringBuffer();
         listString.append("\n\nScanning paths:\n");
-        Iterator<String> iterator = mPathNames.iterator();
+        Iterator<String> iterator = mFilesToProcess.sortedIterator();
         while (iterator.hasNext()) {
             listString.append(iterator.next() + "\n");
         }
         addDebugMessage(listString.toString());
     }
 
+    // The first root of a scan keeps the plain name, so single path scans
+    // find the index they always did.
+    File getScanIndexFile(int volume, File root) {
+        String name = ScanIndex.FILE_NAME;
+        if (volume > 0) {
+            name += "-" + Integer.toHexString(root.getPath().hashCode());
+        }
+        return new File(mApplicationContext.getFilesDir(), name);
+    }
+
+    // Only a scan that ran to completion may be trusted as the base for the
+    // next incremental walk.
+    private void saveScanIndex() {
+        final ArrayList<ScanIndex> indexes = mNextScanIndexes;
+        mNextScanIndexes = null;
+        if (indexes == null) {
+            return;
+        }
+        final ArrayList<File> indexFiles = new ArrayList<File>();
+        for (int i = 0; i < indexes.size(); i++) {
+            ScanIndex index = indexes.get(i);
+            indexFiles.add(index == null ? null :
+                    getScanIndexFile(i, new File(index.getRoot())));
+        }
+        new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < indexes.size(); i++) {
+                    if (indexes.get(i) == null) {
+                        continue;
+                    }
+                    try {
+                        indexes.get(i).save(indexFiles.get(i));
+                    }
+                    catch (IOException ex) {
+                        Log.w("SDScanner", "Could not save scan index", ex);
+                    }
+                }
+            }
+        }).start();
+    }
+
+    File getSpillDirectory() {
+        return new File(mApplicationContext.getFilesDir(), "spill");
+    }
+
+    // Frees the file list, and with it any spilled runs.
+    private void releaseFileList() {
+        if (mFilesToProcess != null) {
+            mFilesToProcess.clear();
+        }
+    }
+
+    File getJournalFile() {
+        return new File(mApplicationContext.getFilesDir(), ScanJournal.FILE_NAME);
+    }
+
+    // A journal that can't be written just means the scan can't be resumed.
+    private ScanJournal openJournal(ScanParameters scanParameters) {
+        try {
+            return new ScanJournal(getJournalFile(), scanParameters);
+        }
+        catch (IOException ex) {
+            Log.w("SDScanner", "Could not start scan journal", ex);
+            return null;
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournal == null) {
+            return;
+        }
+        mJournal.close();
+        mJournal = null;
+        getJournalFile().delete();
+    }
+
+    // Looks for the journal of a scan that never finished.  Reading it
+    // means decoding the whole path list, so it happens off the main thread.
+    private void checkForResume() {
+        final File journalFile = getJournalFile();
+        new Thread(new Runnable() {
+            public void run() {
+                ScanJournal.Resume resume = null;
+                if (journalFile.exists()) {
+                    try {
+                        resume = ScanJournal.load(journalFile);
+                    }
+                    catch (IOException ex) {
+                        Log.w("SDScanner", "Ignoring unreadable scan journal",
+                              ex);
+                    }
+                }
+                final ScanJournal.Resume result = resume;
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        resumeChecked(result);
+                    }
+                });
+            }
+        }).start();
+    }
+
+    private void resumeChecked(ScanJournal.Resume resume) {
+        mResumeChecked = true;
+        if (mHasStarted || resume == null ||
+                resume.getRemaining().size() == 0) {
+            // Superseded by a new scan, or nothing to resume.
+            resume = null;
+        }
+        updateResume(resume);
+        if (mCallbacks != null) {
+            mCallbacks.resumeCheckFinished();
+        }
+    }
+
+    private void saveMetricsReport() {
+        final String report = mMetricsReport;
+        final File reportFile = new File(mApplicationContext.getFilesDir(),
+                                         ScanMetrics.FILE_NAME);
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    ScanMetrics.save(report, reportFile);
+                }
+                catch (IOException ex) {
+                    Log.w("SDScanner", "Could not save scan metrics", ex);
+                }
+            }
+        }).start();
+    }
+
+    File getScannerRateFile() {
+        return new File(mApplicationContext.getFilesDir(),
+                        ScanPlan.RATE_FILE_NAME);
+    }
+
+    // Kept for estimating later plans.  Only scans that sent enough paths
+    // to time a batch say anything about the scanner's throughput.
+    private void saveScannerRate() {
+        if (mScanSubmitter == null) {
+            return;
+        }
+        final float rate = ScanPlan.medianRate(mScanSubmitter.getBatchRates());
+        mScanSubmitter = null;
+        if (rate <= 0) {
+            return;
+        }
+        final File rateFile = getScannerRateFile();
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    ScanPlan.saveRate(rateFile, rate);
+                }
+                catch (IOException ex) {
+                    Log.w("SDScanner", "Could not save scanner rate", ex);
+                }
+            }
+        }).start();
+    }
+
     public void scannerEnded() {
+        mMetrics.finish();
+        mMetricsReport = mMetrics.toJson();
+        saveMetricsReport();
+        saveScannerRate();
+        saveScanIndex();
+        closeJournal();
+        releaseFileList();
+        if (mVolumeProgress != null) {
+            addDebugMessage(R.string.volume_scan_label,
+                            " " + mVolumeProgress.describeScanned());
+            mVolumeProgress = null;
+        }
         updateProgressNum(0);
         updateProgressText(R.string.progress_completed_label);
         updateStartButtonEnabled(true);
+        mScanRunning = false;
+        if (isWatching()) {
+            updateProgressText(R.string.progress_watching_label);
+            scanNextChangedTree();
+        }
+        else if (mScanParameters.getWatch()) {
+            startWatching(mScanParameters);
+        }
         signalFinished();
     }
 
-    public void startMediaScanner(){
+    // The scan phase is timed from here until the last callback.
+    private ScanSubmitter createScanSubmitter(ScanParameters scanParameters) {
+        mMetrics.startPhase(ScanMetrics.Phase.SCAN);
+        ScanSubmitter submitter = new ScanSubmitter(
+            new MediaScannerConnectionScanner(mApplicationContext),
+            mMainExecutor,
+            scanParameters.getScanWindow(),
+            scanParameters.getScanBatchSize(),
+            new ScanSubmitter.Listener() {
+                public void onPathScanned(String path, int completed,
+                                          int total) {
+                    if (mVolumeProgress != null) {
+                        mVolumeProgress.pathScanned(path);
+                    }
+                    new Updater(path, completed, total).run();
+                }
+
+                public void onAllScanned() {
+                    scannerEnded();
+                }
+            });
+        submitter.setMetrics(mMetrics);
+        submitter.setJournal(mJournal);
+        return submitter;
+    }
+
+    public void startMediaScanner(ScanParameters scanParameters) {
         //listPathNamesOnDebug();
-        if (mPathNames.size() == 0) {
+        if (mFilesToProcess.size() == 0) {
             scannerEnded();
         }
         else {
-            MediaScannerConnection.scanFile(
-                mApplicationContext,
-                mPathNames.toArray(new String[mPathNames.size()]),
-                null,
-                new MediaScannerConnection.OnScanCompletedListener() {
-                    public void onScanCompleted(String path, Uri uri) {
-                        mHandler.post(new Updater(path));
-                    }
-                });
+            mScanSubmitter = createScanSubmitter(scanParameters);
+            mScanSubmitter.start();
+            mScanSubmitter.submitAll(mFilesToProcess);
+            mScanSubmitter.finishSubmitting();
         }
     }
 
-    public void startScan(File path, boolean restrictDbUpdate) {
+    public void startScan(ScanParameters scanParameters) {
+        stopWatching();
         mHasStarted = true;
-        updateStartButtonEnabled(false);
-        updateProgressText(R.string.progress_filelist_label);
-        mFilesToProcess = new TreeSet<File>();
+        updateResume(null);
         resetDebugMessages();
-        if (path.exists()) {
-            this.new PreprocessTask().execute(new ScanParameters(path, restrictDbUpdate));
+        if (scanParameters.getAllVolumes() ||
+                scanParameters.getPath().exists()) {
+            runScan(scanParameters);
         }
         else {
             updateProgressText(R.string.progress_error_bad_path_label);
@@ -236,9 +510,382 @@ public class ScanFragment extends Fragment {
         }
     }
 
+    /**
+     * Finishes the interrupted scan found by checkForResume(), sending the
+     * paths it never got to straight to the media scanner.  The path and
+     * database restriction in scanParameters should be the interrupted
+     * scan's.
+     */
+    public void resumeScan(ScanParameters scanParameters) {
+        final PathSet remaining = mResume.getRemaining();
+        stopWatching();
+        mHasStarted = true;
+        updateResume(null);
+        resetDebugMessages();
+        addDebugMessage(R.string.resumed_scan_label, " " + remaining.size());
+        mScanRunning = true;
+        mScanParameters = scanParameters;
+        updateStartButtonEnabled(false);
+        updateProgressText(R.string.progress_filelist_label);
+        mFilesToProcess = remaining;
+        mMetrics = new ScanMetrics();
+        mMetricsReport = null;
+        mVolumeProgress = newVolumeProgress(scanParameters);
+        final ScanParameters parameters = scanParameters;
+        new Thread(new Runnable() {
+            public void run() {
+                countQueued(remaining);
+                // Renumbered from scratch, so it can be resumed again.
+                final ScanJournal journal = openJournal(parameters);
+                if (journal != null) {
+                    journal.addPaths(remaining.iterator());
+                    journal.finishPaths();
+                }
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        if (mScanRunning && mScanParameters == parameters) {
+                            mJournal = journal;
+                            startMediaScanner(parameters);
+                        }
+                        else if (journal != null) {
+                            // Cancelled meanwhile.
+                            journal.close();
+                        }
+                    }
+                });
+            }
+        }).start();
+    }
+
+    private static VolumeProgress newVolumeProgress(
+            ScanParameters scanParameters) {
+        return scanParameters.isMultiVolume() ?
+                new VolumeProgress(scanParameters.getRoots()) : null;
+    }
+
+    // Counts a finished path list against each volume.  Called off the
+    // main thread.
+    private void countQueued(PathList paths) {
+        if (mVolumeProgress == null) {
+            return;
+        }
+        Iterator<String> iterator = paths.sortedIterator();
+        while (iterator.hasNext()) {
+            mVolumeProgress.pathQueued(iterator.next());
+        }
+    }
+
+    // A plan ends with its report instead of the media scanner.  Nothing
+    // was scanned, so neither the scan index nor the metrics are saved.
+    private void planEnded(ScanPlan plan) {
+        mPlanReport = plan.toJson();
+        mMetrics.finish();
+        mMetricsReport = mMetrics.toJson();
+        mNextScanIndexes = null;
+        mVolumeProgress = null;
+        releaseFileList();
+        long estimate = plan.getEstimatedScanMillis();
+        addDebugMessage(R.string.plan_summary_label, " " +
+                plan.getPathsToScan() + ", " + plan.getRowsToDelete() + ", " +
+                plan.getBytes() / (1024 * 1024) + ", " +
+                (estimate < 0 ? "?" : Long.toString(estimate / 1000)));
+        updateProgressNum(0);
+        updateProgressText(R.string.progress_planned_label);
+        updateStartButtonEnabled(true);
+        mScanRunning = false;
+        signalFinished();
+    }
+
+    // Starts a scan without clearing the debug messages.  Watch mode calls
+    // this directly for partial scans, whose path may no longer exist.
+    private void runScan(ScanParameters scanParameters) {
+        mScanRunning = true;
+        mScanParameters = scanParameters;
+        updateStartButtonEnabled(false);
+        updateProgressText(R.string.progress_filelist_label);
+        if (scanParameters.getSpillThreshold() > 0) {
+            mFilesToProcess = new SpillingPathSet(
+                    getSpillDirectory(), scanParameters.getSpillThreshold());
+        }
+        else {
+            mFilesToProcess = new PathSet();
+        }
+        mMetrics = new ScanMetrics();
+        mMetricsReport = null;
+        mPlanReport = null;
+        // Both depend on the roots, so are set up by the task once it has
+        // found them.
+        mVolumeProgress = null;
+        mJournal = null;
+        if (scanParameters.getPipelined()) {
+            // Paths are fed to the scanner while preparation goes on.
+            mScanSubmitter = createScanSubmitter(scanParameters);
+            mScanSubmitter.start();
+        }
+        mPreprocessTask = this.new PreprocessTask();
+        // Partial scans in watch mode are quick, so not journaled, and
+        // plans have nothing to resume.
+        mPreprocessTask.mJournaled =
+                !isWatching() && !scanParameters.getPlanOnly();
+        mPreprocessTask.execute(scanParameters);
+    }
+
+    /**
+     * Stops the running scan, and watch mode.  The walk stops after the
+     * folders being listed, the database read after the current row, and
+     * nothing more is sent to the media scanner.
+     *
+     * @param keepCheckpoint Keep the journal of a scan that had already
+     *                       worked out its full path list, so the rest can
+     *                       be resumed later.
+     */
+    public void cancelScan(boolean keepCheckpoint) {
+        stopWatching();
+        if (!mScanRunning || mCancelling) {
+            return;
+        }
+        mCancelling = true;
+        mKeepCheckpoint = keepCheckpoint;
+        updateProgressText(R.string.progress_cancelling_label);
+        if (mScanSubmitter != null) {
+            mScanSubmitter.cancel();
+        }
+        if (mPreprocessTask != null) {
+            // Finished from onCancelled(), once preparation has let go of
+            // the scan's state.
+            mPreprocessTask.cancelWork();
+            mPreprocessTask.cancel(true);
+        }
+        else {
+            scanCancelled();
+        }
+    }
+
+    private void scanCancelled() {
+        mPreprocessTask = null;
+        mCancelling = false;
+        mNextScanIndexes = null;
+        boolean resumable = false;
+        if (mJournal != null) {
+            resumable = mKeepCheckpoint && mJournal.isResumable();
+            mJournal.close();
+            if (!resumable) {
+                getJournalFile().delete();
+            }
+            mJournal = null;
+        }
+        releaseFileList();
+        mMetrics.setCancelled(true);
+        mMetrics.finish();
+        mMetricsReport = mMetrics.toJson();
+        saveMetricsReport();
+        mScanRunning = false;
+        updateProgressNum(0);
+        updateProgressText(R.string.progress_cancelled_label);
+        updateStartButtonEnabled(true);
+        if (resumable) {
+            checkForResume();
+        }
+        signalFinished();
+    }
+
+    public boolean isWatching() {
+        return mWatchParameters != null;
+    }
+
+    private Runnable mFlushChanges = new Runnable() {
+        public void run() {
+            if (mCoalescer == null) {
+                return;
+            }
+            long now = SystemClock.uptimeMillis();
+            long next = mCoalescer.flush(now, mChangeListener);
+            if (next >= 0) {
+                mHandler.postDelayed(mFlushChanges, next - now);
+            }
+        }
+    };
+
+    private Runnable mRescanUnwatched = new Runnable() {
+        public void run() {
+            if (mWatcher == null) {
+                return;
+            }
+            for (String tree : mWatcher.getUnwatchedTrees()) {
+                queueChangedTree(tree);
+            }
+            mHandler.postDelayed(mRescanUnwatched, UNWATCHED_RESCAN_MILLIS);
+        }
+    };
+
+    private ChangeCoalescer.Listener mChangeListener =
+            new ChangeCoalescer.Listener() {
+        public void onFilesChanged(String directory, ArrayList<String> paths) {
+            submitChangedFiles(paths);
+        }
+
+        public void onTreeChanged(String path) {
+            queueChangedTree(path);
+        }
+    };
+
+    /**
+     * Watches the scanned tree and rescans only what changes, instead of
+     * rescanning everything later.  Assumes a full scan has just finished.
+     */
+    public void startWatching(final ScanParameters scanParameters) {
+        stopWatching();
+        mWatchParameters = scanParameters;
+        final ChangeCoalescer coalescer = new ChangeCoalescer();
+        final DirectoryWatcher watcher = new DirectoryWatcher(scanParameters,
+                DirectoryWatcher.DEFAULT_MAX_WATCHES,
+                new DirectoryWatcher.Listener() {
+                    // Called on the observer thread.
+                    public void onChange(String directory, String name,
+                                         boolean tree) {
+                        if (coalescer.addEvent(directory, name, tree,
+                                               SystemClock.uptimeMillis())) {
+                            mHandler.postDelayed(mFlushChanges,
+                                    ChangeCoalescer.DEFAULT_QUIET_MILLIS);
+                        }
+                    }
+                });
+        mCoalescer = coalescer;
+        mWatcher = watcher;
+        updateProgressText(R.string.progress_watching_label);
+        new Thread(new Runnable() {
+            public void run() {
+                for (File root : scanParameters.getRoots()) {
+                    watcher.watchTree(root);
+                }
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        watchesRegistered(watcher);
+                    }
+                });
+            }
+        }).start();
+    }
+
+    private void watchesRegistered(DirectoryWatcher watcher) {
+        if (watcher != mWatcher) {
+            // Stopped in the meantime.
+            return;
+        }
+        addDebugMessage(R.string.watched_folders_label,
+                        " " + watcher.getWatchCount());
+        int unwatched = watcher.getUnwatchedTrees().size();
+        if (unwatched > 0) {
+            addDebugMessage(R.string.unwatched_folders_label, " " + unwatched);
+            mHandler.postDelayed(mRescanUnwatched, UNWATCHED_RESCAN_MILLIS);
+        }
+    }
+
+    public void stopWatching() {
+        if (!isWatching()) {
+            return;
+        }
+        mWatcher.stop();
+        mWatcher = null;
+        mCoalescer = null;
+        mWatchParameters = null;
+        mChangedTrees.clear();
+        mHandler.removeCallbacks(mFlushChanges);
+        mHandler.removeCallbacks(mRescanUnwatched);
+        if (!mScanRunning) {
+            updateProgressText(R.string.progress_completed_label);
+        }
+    }
+
+    // Changed files go straight to the scanner, with no walk or database
+    // pass.  Deleted files are included; the scanner drops their rows.
+    private void submitChangedFiles(ArrayList<String> paths) {
+        ScanSubmitter submitter = null;
+        for (String path : paths) {
+            try {
+                File file = new File(path);
+                // Deleted files can't be typed, but need the scanner to
+                // drop their rows anyway.
+                if (!mWatchParameters.shouldScan(file, false) ||
+                        !mWatchParameters.getTypeFilter().acceptsByName(file)) {
+                    continue;
+                }
+            }
+            catch (IOException ex) {
+                continue;
+            }
+            if (submitter == null) {
+                submitter = new ScanSubmitter(
+                    new MediaScannerConnectionScanner(mApplicationContext),
+                    mMainExecutor,
+                    mWatchParameters.getScanWindow(),
+                    mWatchParameters.getScanBatchSize(),
+                    new ScanSubmitter.Listener() {
+                        public void onPathScanned(String path, int completed,
+                                                  int total) {
+                            new Updater(path, completed, total).run();
+                        }
+
+                        public void onAllScanned() {
+                            if (!mScanRunning && isWatching()) {
+                                updateProgressNum(0);
+                                updateProgressText(
+                                        R.string.progress_watching_label);
+                            }
+                        }
+                    });
+                submitter.start();
+            }
+            submitter.submit(path);
+        }
+        if (submitter != null) {
+            submitter.finishSubmitting();
+        }
+    }
+
+    private void queueChangedTree(String path) {
+        if (!mChangedTrees.contains(path)) {
+            mChangedTrees.add(path);
+        }
+        scanNextChangedTree();
+    }
+
+    // Folders that appeared or disappeared, and subtrees over the watch
+    // limit, get a partial scan: walk plus database pass, restricted to the
+    // folder.  New folders are watched first, so nothing created during
+    // the scan is missed.
+    private void scanNextChangedTree() {
+        if (mScanRunning || mChangedTrees.isEmpty() || !isWatching()) {
+            return;
+        }
+        final String path = mChangedTrees.removeFirst();
+        final DirectoryWatcher watcher = mWatcher;
+        mScanRunning = true;
+        new Thread(new Runnable() {
+            public void run() {
+                File tree = new File(path);
+                if (tree.isDirectory()) {
+                    watcher.watchTree(tree);
+                }
+                else {
+                    watcher.unwatch(path);
+                }
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        if (watcher != mWatcher) {
+                            mScanRunning = false;
+                            return;
+                        }
+                        runScan(mWatchParameters.forSubtree(new File(path)));
+                    }
+                });
+            }
+        }).start();
+    }
+
     static class ProgressUpdate {
         public enum Type {
-            DATABASE, STATE, DEBUG
+            DATABASE, STATE, TEXT, DEBUG
         }
 
         Type mType;
@@ -287,170 +934,438 @@ public class ScanFragment extends Fragment {
                                   progress);
     }
 
+    static ProgressUpdate textUpdate(int resId, String string) {
+        return new ProgressUpdate(ProgressUpdate.Type.TEXT, resId, string, 0);
+    }
+
     static ProgressUpdate stateUpdate(int resId) {
         return new ProgressUpdate(ProgressUpdate.Type.STATE, resId, "", 0);
     }
 
-    static class ScanParameters {
-        File mPath;
-        boolean mRestrictDbUpdate;
+    class PreprocessTask extends AsyncTask<ScanParameters, ProgressUpdate, Void> {
 
-        public ScanParameters(File path, boolean restrictDbUpdate) {
-            mPath = path;
-            mRestrictDbUpdate = restrictDbUpdate;
+        // Walkers and reader in use, so cancelWork() can stop them.
+        ArrayList<ParallelFileWalker> mWalkers =
+                new ArrayList<ParallelFileWalker>();
+        DatabaseReader mReader;
+        boolean mWorkCancelled = false;
+        // Folders walked, for the symlink loop check when the file list
+        // spills to disk.
+        PathSet mWalkedFolders;
+        // Walked files' mtimes, where the platform can stat for type and
+        // mtime at once.  Not kept when spilling, being a map of every file.
+        StatCache mStatCache;
+
+        ScanParameters mScanParameters;
+        // Whether to keep a journal, so the scan can be resumed.
+        boolean mJournaled;
+        // Whichever consumes the database rows: the Reconciler normally, or
+        // the snapshot in a pipelined scan.
+        Reconciler mReconciler;
+        MediaSnapshot mMediaSnapshot;
+        // Deletes missing files' rows, or null to leave them to the scanner.
+        MissingRowRemover mRowRemover;
+        // What the scan would do, when only planning.
+        ScanPlan mPlan;
+        // Classification counts for a pipelined scan.
+        AtomicInteger mNewCount = new AtomicInteger();
+        AtomicInteger mStaleCount = new AtomicInteger();
+        AtomicInteger mMissingCount = new AtomicInteger();
+
+        // Called on the main thread, alongside cancel().
+        synchronized void cancelWork() {
+            mWorkCancelled = true;
+            for (ParallelFileWalker walker : mWalkers) {
+                walker.cancel();
+            }
+            if (mReader != null) {
+                mReader.cancel();
+            }
         }
 
-        public File getPath() {
-            return mPath;
+        private synchronized void track(ParallelFileWalker walker) {
+            mWalkers.add(walker);
+            if (mWorkCancelled) {
+                walker.cancel();
+            }
         }
 
-        public boolean shouldScan(File file, boolean fromDb)
-                throws IOException {
-            // Empty directory check.
-            if (file.isDirectory()) {
-                File[] files = file.listFiles();
-                if (files == null || files.length == 0) {
-                    Log.w("SDScanner", "Scan of empty directory " +
-                          file.getCanonicalPath() + " skipped to avoid bug.");
-                    return false;
-                }
+        private synchronized void track(DatabaseReader reader) {
+            mReader = reader;
+            if (mWorkCancelled) {
+                reader.cancel();
             }
-            if (!mRestrictDbUpdate && fromDb) {
-                return true;
+        }
+
+        private ScanIndex loadScanIndex(int volume, File root,
+                                        String walkFilters, long now) {
+            File indexFile = getScanIndexFile(volume, root);
+            if (!indexFile.exists()) {
+                return null;
             }
-            while (file != null) {
-                if (file.equals(mPath)) {
-                    return true;
+            try {
+                ScanIndex index = ScanIndex.load(indexFile);
+                if (!index.isUsableFor(root, walkFilters, now)) {
+                    return null;
+                }
+                if (!databaseMatches(index, root)) {
+                    publishProgress(debugUpdate(
+                            R.string.database_cleared_label,
+                            " " + root.getPath()));
+                    return null;
                 }
-                file = file.getParentFile();
+                return index;
             }
-            // If we fell through here, got up to root without encountering the
-            // path to scan.
-            if (!fromDb) {
-                Log.w("SDScanner", "File " + file.getCanonicalPath() +
-                      " outside of scan directory skipped.");
+            catch (IOException ex) {
+                Log.w("SDScanner", "Ignoring unreadable scan index", ex);
             }
-            return false;
+            return null;
         }
-    }
 
-    class PreprocessTask extends AsyncTask<ScanParameters, ProgressUpdate, Void> {
-
-        private void recursiveAddFiles(File file, ScanParameters scanParameters)
-                throws IOException {
-            if (!scanParameters.shouldScan(file, false)) {
-                // If we got here, there file was either outside the scan
-                // directory, or was an empty directory.
-                return;
+        // A database that can't be counted is treated as cleared, costing
+        // a full walk rather than missed files.
+        private boolean databaseMatches(ScanIndex index, File root) {
+            try {
+                return index.matchesDatabase(
+                        newMediaIndex().countRows(new ScopeMatcher(root)));
             }
-            if (!mFilesToProcess.add(file)) {
-                // Avoid infinite recursion caused by symlinks.
-                // If mFilesToProcess already contains this file, add() will 
-                // return false.
-                return;
+            catch (RuntimeException ex) {
+                Log.w("SDScanner", "Could not count media database rows", ex);
+                return false;
             }
-            if (file.isDirectory()) {
-                boolean nomedia = new File(file, ".nomedia").exists();
-                // Only recurse downward if not blocked by nomedia.
-                if (!nomedia) {
-                    File[] files = file.listFiles();
-                    if (files != null) {
-                        for (File nextFile : files) {
-                            recursiveAddFiles(nextFile.getCanonicalFile(),
-                                              scanParameters);
+        }
+
+        private MediaIndex newMediaIndex() {
+            return new MediaStoreIndex(
+                    mApplicationContext.getContentResolver());
+        }
+
+        // Each volume is walked by its own pool, so a slow card can't hold
+        // up internal storage.  The primary volume comes first.
+        private int walkThreads(ScanParameters scanParameters, int volume) {
+            if (!scanParameters.isMultiVolume() ||
+                    (volume == 0 && !Environment.isExternalStorageRemovable())) {
+                return ParallelFileWalker.DEFAULT_THREADS;
+            }
+            return ParallelFileWalker.REMOVABLE_THREADS;
+        }
+
+        private ParallelFileWalker newWalker(ScanParameters scanParameters,
+                                             final int volume) {
+            ParallelFileWalker walker = new ParallelFileWalker(
+                    scanParameters, mFilesToProcess,
+                    walkThreads(scanParameters, volume),
+                    new ParallelFileWalker.Listener() {
+                        public void onSkippedFolder(File folder) {
+                            publishProgress(debugUpdate(
+                                    R.string.skipping_folder_label,
+                                    " " + folder.getPath()));
                         }
+
+                        public void onPathAdded(String path) {
+                            if (mVolumeProgress != null) {
+                                mVolumeProgress.addFound(volume, 1);
+                            }
+                            if (mMediaSnapshot != null) {
+                                classifyWalked(path);
+                            }
+                        }
+                    });
+            if (mWalkedFolders != null) {
+                walker.setFolderSet(mWalkedFolders);
+            }
+            if (mStatCache != null) {
+                walker.setStatCache(mStatCache);
+            }
+            walker.setMetrics(mMetrics);
+            track(walker);
+            return walker;
+        }
+
+        private void walkFiles(ScanParameters scanParameters)
+                throws IOException, InterruptedException {
+            ArrayList<File> roots = scanParameters.getRoots();
+            ArrayList<ParallelFileWalker> walkers =
+                    new ArrayList<ParallelFileWalker>();
+            boolean indexed = scanParameters.getLowStatWalk() &&
+                              scanParameters.getUseScanIndex();
+            long now = System.currentTimeMillis();
+            String walkFilters = scanParameters.getWalkFilters();
+            boolean fullRescan = false;
+            if (indexed) {
+                mNextScanIndexes = new ArrayList<ScanIndex>();
+            }
+            for (int i = 0; i < roots.size(); i++) {
+                File root = roots.get(i);
+                ParallelFileWalker walker = newWalker(scanParameters, i);
+                if (indexed) {
+                    ScanIndex previousIndex = null;
+                    if (!scanParameters.getFullRescan()) {
+                        previousIndex = loadScanIndex(i, root, walkFilters,
+                                                      now);
                     }
-                    else {
-                        publishProgress(debugUpdate(
-                                R.string.skipping_folder_label,
-                                " " + file.getPath()));
+                    if (previousIndex == null) {
+                        fullRescan = true;
                     }
+                    ScanIndex nextIndex = new ScanIndex(root.getPath(), now);
+                    nextIndex.setWalkFilters(walkFilters);
+                    mNextScanIndexes.add(nextIndex);
+                    walker.setScanIndexes(previousIndex, nextIndex);
                 }
+                walkers.add(walker);
+            }
+            if (fullRescan) {
+                publishProgress(debugUpdate(R.string.full_rescan_label));
+            }
+            if (walkers.size() == 1) {
+                walkers.get(0).walk(roots.get(0));
+            }
+            else {
+                walkVolumes(walkers, roots);
+            }
+            int unchangedDirectories = 0;
+            for (ParallelFileWalker walker : walkers) {
+                unchangedDirectories += walker.getUnchangedDirectories();
+            }
+            if (unchangedDirectories > 0) {
+                publishProgress(debugUpdate(
+                        R.string.unchanged_folders_label,
+                        " " + unchangedDirectories));
             }
         }
 
-        protected void dbOneTry(ScanParameters parameters) {
-            Cursor cursor = mApplicationContext.getContentResolver().query(
-                    MediaStore.Files.getContentUri("external"),
-                    MEDIA_PROJECTION,
-                    //STAR,
-                    null,
-                    null,
-                    null);
-            int data_column =
-                    cursor.getColumnIndex(MediaStore.MediaColumns.DATA);
-            int modified_column =
-                    cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
-            int totalSize = cursor.getCount();
-            int currentItem = 0;
-            int reportFreq = 0;
-            // Used to calibrate reporting frequency
-            long startTime = SystemClock.currentThreadTimeMillis();
-            while (cursor.moveToNext()) {
-                currentItem++;
-                try {
-                    File file = new File(cursor.getString(data_column)).getCanonicalFile();
-                    if ((!file.exists() ||
-                             file.lastModified() / 1000L >
-                             cursor.getLong(modified_column))
-                             && parameters.shouldScan(file, true)) {
-                        // Media scanner handles these cases.
-                        // Is a set, so OK if already present.
-                        mFilesToProcess.add(file);
+        // Walks every volume at once, reporting the files found on each
+        // while the walks go on.
+        private void walkVolumes(ArrayList<ParallelFileWalker> walkers,
+                                 final ArrayList<File> roots)
+                throws InterruptedException {
+            Thread[] threads = new Thread[walkers.size()];
+            for (int i = 0; i < threads.length; i++) {
+                final ParallelFileWalker walker = walkers.get(i);
+                final File root = roots.get(i);
+                threads[i] = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            walker.walk(root);
+                        }
+                        catch (IOException ex) {
+                            publishProgress(debugUpdate(
+                                    R.string.skipping_folder_label,
+                                    " " + root.getPath()));
+                        }
+                        catch (InterruptedException ex) {
+                            // Left unfinished.
+                        }
                     }
-                    else {
-                        // Don't want to waste time scanning an up-to-date
-                        // file.
-                        mFilesToProcess.remove(file);
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                while (thread.isAlive()) {
+                    thread.join(VOLUME_PROGRESS_MILLIS);
+                    publishProgress(textUpdate(R.string.volume_walk_label,
+                            " " + mVolumeProgress.describeFound()));
+                }
+            }
+            publishProgress(debugUpdate(R.string.volume_walk_label,
+                    " " + mVolumeProgress.describeFound()));
+        }
+
+        // Journaling and submitting happen under one lock, so the journal
+        // numbers paths in the order the submitter sends them.
+        private void submit(String path) {
+            if (mVolumeProgress != null) {
+                mVolumeProgress.pathQueued(path);
+            }
+            if (mJournal == null) {
+                mScanSubmitter.submit(path);
+                return;
+            }
+            synchronized (mJournal) {
+                mJournal.addPath(path);
+                mScanSubmitter.submit(path);
+            }
+        }
+
+        // Called on walker threads during a pipelined scan.  The database
+        // has already been read, so a file can be sent to the scanner the
+        // moment it is found if it has no row or its row is out of date.
+        private void classifyWalked(String path) {
+            long dateModified = mMediaSnapshot.markSeen(path);
+            if (dateModified < 0) {
+                mNewCount.incrementAndGet();
+                submit(path);
+                return;
+            }
+            long mtime;
+            if (mStatCache != null) {
+                mtime = mStatCache.lastModified(path, mMetrics);
+            }
+            else {
+                mMetrics.increment(ScanMetrics.Counter.STAT_CALLS);
+                mtime = new File(path).lastModified();
+            }
+            if (mtime / 1000L > dateModified) {
+                mStaleCount.incrementAndGet();
+                submit(path);
+            }
+            else {
+                mMetrics.increment(ScanMetrics.Counter.ROWS_UP_TO_DATE);
+            }
+        }
+
+        // After a pipelined walk, only database rows the walk never reached
+        // are left to check.
+        private void classifyUnseenRows(final ScanParameters parameters) {
+            // Pipelined scans never spill, so the list can be looked up.
+            final PathSet walked = (PathSet) mFilesToProcess;
+            mMediaSnapshot.forEachUnseen(new MediaSnapshot.UnseenRowHandler() {
+                public void onUnseenRow(long id, String data,
+                                        long dateModified) {
+                    if (isCancelled()) {
+                        return;
                     }
-                    if (reportFreq == 0) {
-                        // Calibration phase
-                        if (SystemClock.currentThreadTimeMillis() - startTime > 25) {
-                            reportFreq = currentItem + 1;
+                    try {
+                        File file = new File(data).getCanonicalFile();
+                        String path = file.getPath();
+                        if (walked.contains(path)) {
+                            // Walked under its canonical name.
+                            return;
+                        }
+                        boolean exists = file.exists();
+                        mMetrics.add(ScanMetrics.Counter.STAT_CALLS,
+                                     exists ? 3 : 2);
+                        if ((!exists ||
+                                 file.lastModified() / 1000L > dateModified)
+                                 && parameters.shouldScan(file, true)) {
+                            walked.add(path);
+                            if (exists) {
+                                mStaleCount.incrementAndGet();
+                                submit(path);
+                            }
+                            else {
+                                mMissingCount.incrementAndGet();
+                                removeMissingRow(id, path);
+                            }
                         }
                     }
-                    else if (currentItem % reportFreq == 0) {
-                        publishProgress(databaseUpdate(file.getPath(),
-                                        (100 * currentItem) / totalSize));
+                    catch (IOException ex) {
+                        // Just ignore it for now.
                     }
                 }
-                catch (IOException ex) {
-                    // Just ignore it for now.
+            });
+        }
+
+        // Called on the preparation thread.  A pipelined scan submits what
+        // the remover leaves; otherwise the path is already in the file list.
+        private MissingRowRemover newRowRemover(MediaIndex index,
+                                                final boolean pipelined) {
+            MissingRowRemover remover = new MissingRowRemover(index,
+                    MissingRowRemover.DEFAULT_BATCH_SIZE,
+                    new MissingRowRemover.Listener() {
+                        public void onRemoved(String path) {
+                            mFilesToProcess.removePath(path);
+                        }
+
+                        public void onLeftForScanner(String path) {
+                            if (pipelined) {
+                                submit(path);
+                            }
+                        }
+                    });
+            remover.setMountCheck(new MissingRowRemover.MountCheck() {
+                public boolean isMounted(File file) {
+                    return StorageVolumes.isMounted(file);
                 }
+            });
+            remover.setMetrics(mMetrics);
+            return remover;
+        }
+
+        private void removeMissingRow(long id, String path) {
+            if (mRowRemover != null) {
+                mRowRemover.add(id, path);
+            }
+            else if (mScanParameters.getPipelined()) {
+                submit(path);
             }
-            // Don't need the cursor any more.
-            cursor.close();
         }
 
-        @Override
-        protected Void doInBackground(ScanParameters... parameters) {
-            try {
-                recursiveAddFiles(parameters[0].getPath(), parameters[0]);
+        private void finishRemovingRows() {
+            if (mRowRemover == null) {
+                return;
             }
-            catch (IOException Ex) {
-                // Do nothing.
+            mRowRemover.flush();
+            if (mRowRemover.getRemovedCount() > 0) {
+                publishProgress(debugUpdate(R.string.removed_rows_label,
+                        " " + mRowRemover.getRemovedCount()));
             }
-            // Parse database
+            if (mRowRemover.isRefused()) {
+                publishProgress(debugUpdate(
+                        R.string.removed_rows_refused_label));
+            }
+        }
+
+        private MediaIndex.RowHandler newRowHandler(ScanParameters parameters) {
+            if (parameters.getPipelined()) {
+                mMediaSnapshot = new MediaSnapshot();
+                return mMediaSnapshot;
+            }
+            // The Reconciler updates the file list itself, so only missing
+            // files need anything more.
+            mReconciler = new Reconciler(mFilesToProcess, parameters,
+                    new Reconciler.Listener() {
+                        public void onNewOnDisk(String path) {
+                        }
+
+                        public void onStale(String path) {
+                        }
+
+                        public void onMissing(long id, String path) {
+                            removeMissingRow(id, path);
+                        }
+                    });
+            mReconciler.setMetrics(mMetrics);
+            mReconciler.setStatCache(mStatCache);
+            return mReconciler;
+        }
+
+        // Reads every row into one RowHandler.  A failed attempt is picked
+        // up where it stopped, so rows are never handled twice.
+        private void readDatabase(ScanParameters parameters) {
             publishProgress(stateUpdate(R.string.progress_database_label));
+            mMetrics.startPhase(ScanMetrics.Phase.DATABASE);
+            MediaIndex index = newMediaIndex();
+            if (parameters.getDeleteMissingRows() &&
+                    !parameters.getPlanOnly()) {
+                mRowRemover = newRowRemover(index, parameters.getPipelined());
+            }
+            DatabaseReader reader = new DatabaseReader(index, parameters);
+            reader.setMetrics(mMetrics);
+            track(reader);
             boolean dbSuccess = false;
-            int numRetries = 0;
-            while (!dbSuccess && numRetries < DB_RETRIES) {
-                dbSuccess = true;
-                try {
-                    dbOneTry(parameters[0]);
-                }
-                catch (Exception Ex) {
-                    // For any of these errors, try again.
-                    numRetries++;
-                    dbSuccess = false;
-                    if (numRetries < DB_RETRIES) {
-                        publishProgress(stateUpdate(
-                                R.string.db_error_retrying));
-                        SystemClock.sleep(1000);
-                    }
-                }
+            try {
+                dbSuccess = reader.readWithRetries(newRowHandler(parameters),
+                        new DatabaseReader.ProgressListener() {
+                            public void onProgress(String data, int progress) {
+                                publishProgress(databaseUpdate(data, progress));
+                            }
+                        },
+                        DB_ATTEMPTS,
+                        new DatabaseReader.RetryListener() {
+                            public void onRetry(int attempt, long delayMillis,
+                                                Exception ex) {
+                                Log.w("SDScanner", "Database read attempt " +
+                                      attempt + " failed", ex);
+                                publishProgress(stateUpdate(
+                                        R.string.db_error_retrying));
+                            }
+                        });
+            }
+            catch (InterruptedException ex) {
+                // Treated as a failed read.
             }
-            if (numRetries > 0) {
+            if (reader.getAttempts() > 1 && !reader.isCancelled()) {
                 if (dbSuccess) {
                     publishProgress(debugUpdate(R.string.db_error_recovered));
                 }
@@ -458,13 +1373,144 @@ public class ScanFragment extends Fragment {
                     publishProgress(debugUpdate(R.string.db_error_failure));
                 }
             }
-            // Prepare final path list for processing.
-            mPathNames = new ArrayList<String>(mFilesToProcess.size());
-            Iterator<File> iterator = mFilesToProcess.iterator();
-            while (iterator.hasNext()) {
-                mPathNames.add(iterator.next().getPath());
+            mMetrics.endPhase(ScanMetrics.Phase.DATABASE);
+        }
+
+        private void publishReconcileSummary(int newCount, int staleCount,
+                                             int missingCount) {
+            publishProgress(debugUpdate(R.string.reconcile_summary_label,
+                    " " + newCount + ", " + staleCount + ", " + missingCount));
+        }
+
+        private void walkFilesQuietly(ScanParameters parameters) {
+            mMetrics.startPhase(ScanMetrics.Phase.WALK);
+            try {
+                walkFiles(parameters);
+            }
+            catch (IOException Ex) {
+                // Do nothing.
+            }
+            catch (InterruptedException Ex) {
+                // Do nothing.
+            }
+            finally {
+                mMetrics.endPhase(ScanMetrics.Phase.WALK);
+            }
+        }
+
+        // Database first, so each walked file can be classified on sight.
+        private void doPipelined(ScanParameters parameters) {
+            readDatabase(parameters);
+            if (isCancelled()) {
+                return;
+            }
+            // Even a partial read is usable; rows it missed are treated as
+            // absent, which at worst rescans an up-to-date file.
+            mMediaSnapshot.finishLoading();
+            publishProgress(stateUpdate(R.string.progress_filelist_label));
+            walkFilesQuietly(parameters);
+            if (isCancelled()) {
+                return;
+            }
+            classifyUnseenRows(parameters);
+            finishRemovingRows();
+            publishReconcileSummary(mNewCount.get(), mStaleCount.get(),
+                                    mMissingCount.get());
+            if (mJournal != null) {
+                mJournal.finishPaths();
+            }
+            mScanSubmitter.finishSubmitting();
+        }
+
+        // Sizes up the file list the reconciliation left, which would
+        // otherwise have gone to the scanner.
+        private ScanPlan makePlan(ScanParameters parameters) {
+            ScanPlan plan = new ScanPlan(mReconciler.getNewCount(),
+                    mReconciler.getStaleCount(),
+                    mReconciler.getMissingCount(), mFilesToProcess.size(),
+                    parameters.getDeleteMissingRows());
+            long bytes = 0;
+            int statted = 0;
+            Iterator<String> iterator = mFilesToProcess.sortedIterator();
+            while (iterator.hasNext() && !isCancelled()) {
+                // Zero for missing files.
+                bytes += new File(iterator.next()).length();
+                statted++;
+            }
+            mMetrics.add(ScanMetrics.Counter.STAT_CALLS, statted);
+            plan.setBytes(bytes);
+            plan.setScannerRate(ScanPlan.loadRate(getScannerRateFile()));
+            return plan;
+        }
+
+        // Settles which trees the scan covers, then sets up what depends on
+        // them.  Nothing has been walked or submitted yet, so the scanner
+        // callbacks on the main thread don't see these change.
+        private void findRoots(ScanParameters scanParameters) {
+            if (scanParameters.getAllVolumes()) {
+                ArrayList<File> roots =
+                        StorageVolumes.findMounted(mApplicationContext);
+                if (!roots.isEmpty()) {
+                    scanParameters.setRoots(roots);
+                }
+            }
+            mVolumeProgress = newVolumeProgress(scanParameters);
+            if (mJournaled) {
+                mJournal = openJournal(scanParameters);
+                if (mScanSubmitter != null) {
+                    mScanSubmitter.setJournal(mJournal);
+                }
+            }
+        }
+
+        @Override
+        protected Void doInBackground(ScanParameters... parameters) {
+            mScanParameters = parameters[0];
+            findRoots(mScanParameters);
+            if (mScanParameters.getSpillThreshold() > 0) {
+                SpillingPathSet.deleteLeftovers(getSpillDirectory());
+                mWalkedFolders = new PathSet();
+            }
+            else {
+                StatCache.Stat stat = StatCache.platformStat();
+                if (stat != null) {
+                    mStatCache = new StatCache(stat);
+                }
+            }
+            if (mScanParameters.getPipelined()) {
+                doPipelined(mScanParameters);
+                return null;
+            }
+            walkFilesQuietly(parameters[0]);
+            if (isCancelled()) {
+                return null;
+            }
+            // Parse database
+            readDatabase(parameters[0]);
+            if (isCancelled()) {
+                return null;
+            }
+            if (mReconciler != null) {
+                mReconciler.finish();
+                finishRemovingRows();
+                publishReconcileSummary(mReconciler.getNewCount(),
+                                        mReconciler.getStaleCount(),
+                                        mReconciler.getMissingCount());
+            }
+            if (mScanParameters.getPlanOnly()) {
+                mPlan = makePlan(mScanParameters);
+                return null;
+            }
+            // Prepare final path list for processing.  Sizing a spilled
+            // list merges its runs, which must not happen on the main
+            // thread.
+            if (mFilesToProcess.size() > 0) {
+                countQueued(mFilesToProcess);
+            }
+            if (mJournal != null) {
+                mJournal.addPaths(mFilesToProcess.sortedIterator());
+                mJournal.finishPaths();
             }
-            mLastGoodProcessedIndex = -1;
 
             return null;
         }
@@ -481,6 +1527,10 @@ public class ScanFragment extends Fragment {
                 updateProgressText(progress[0].getResId());
                 updateProgressNum(0);
                 break;
+            case TEXT:
+                updateProgressText(progress[0].getResId(),
+                                   progress[0].getString());
+                break;
             case DEBUG:
                 addDebugMessage(progress[0].getResId(), progress[0].getString());
             }
@@ -488,36 +1538,39 @@ public class ScanFragment extends Fragment {
 
         @Override
         protected void onPostExecute(Void result) {
-            startMediaScanner();
+            mPreprocessTask = null;
+            if (mPlan != null) {
+                planEnded(mPlan);
+            }
+            else if (!mScanParameters.getPipelined()) {
+                startMediaScanner(mScanParameters);
+            }
+        }
+
+        @Override
+        protected void onCancelled() {
+            scanCancelled();
         }
     }
 
     class Updater implements Runnable {
         String mPathScanned;
+        int mCompleted;
+        int mTotal;
 
-        public Updater(String path) {
+        public Updater(String path, int completed, int total) {
             mPathScanned = path;
+            mCompleted = completed;
+            mTotal = total;
         }
 
         public void run() {
-            if (mLastGoodProcessedIndex + 1 < mPathNames.size() &&
-                mPathNames.get(mLastGoodProcessedIndex
-                              + 1).equals(mPathScanned)) {
-                mLastGoodProcessedIndex++;
-            }
-            else {
-                int newIndex = mPathNames.indexOf(mPathScanned);
-                if (newIndex > -1) {
-                    mLastGoodProcessedIndex = newIndex;
-                }
-            }
-            int progress = (100 * (mLastGoodProcessedIndex + 1))
-                           / mPathNames.size();
-            if (progress == 100) {
-                scannerEnded();
+            updateProgressNum((100 * mCompleted) / mTotal);
+            if (mVolumeProgress != null) {
+                updateProgressText(R.string.volume_scan_label,
+                                   " " + mVolumeProgress.describeScanned());
             }
             else {
-                updateProgressNum(progress);
                 updateProgressText(R.string.final_proc, " " + mPathScanned);
             }
         }
@@ -0,0 +1,247 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the on-disk index of directories seen by the last
+ * successful scan, used to avoid relisting directories that have not
+ * changed.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ScanIndex {
+
+    private static final int MAGIC = 0x53445349; // "SDSI"
+    private static final int VERSION = 3;
+
+    static final String FILE_NAME = "scan_index";
+
+    // Force a full walk at least this often, in case the media database was
+    // changed behind our back.
+    static final long MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    // Directory timestamps can be as coarse as two seconds (FAT), so a
+    // directory changed this close to the scan start may have changed again
+    // without its mtime moving.  Such entries are not trusted next time.
+    private static final long MTIME_SLACK_MILLIS = 2000;
+
+    static class Entry {
+        long mMtime;
+        int mChildCount;
+        // Files the walk found here, which the media database should have.
+        int mFileCount;
+        boolean mNomedia;
+        // Canonical paths of in-scope subdirectories.
+        String[] mSubdirs;
+
+        public Entry(long mtime, int childCount, int fileCount,
+                     boolean nomedia, String[] subdirs) {
+            mMtime = mtime;
+            mChildCount = childCount;
+            mFileCount = fileCount;
+            mNomedia = nomedia;
+            mSubdirs = subdirs;
+        }
+
+        public long getMtime() {
+            return mMtime;
+        }
+
+        public int getChildCount() {
+            return mChildCount;
+        }
+
+        public int getFileCount() {
+            return mFileCount;
+        }
+
+        public boolean getNomedia() {
+            return mNomedia;
+        }
+
+        public String[] getSubdirs() {
+            return mSubdirs;
+        }
+    }
+
+    String mRoot;
+    long mScanStartTime;
+    // Unchanged folders are not relisted, so an index is only good for
+    // walks that would have kept the same files and subdirectories.
+    String mWalkFilters = "";
+    Map<String, Entry> mEntries = new ConcurrentHashMap<String, Entry>();
+
+    public ScanIndex(String root, long scanStartTime) {
+        mRoot = root;
+        mScanStartTime = scanStartTime;
+    }
+
+    public String getRoot() {
+        return mRoot;
+    }
+
+    public long getScanStartTime() {
+        return mScanStartTime;
+    }
+
+    public String getWalkFilters() {
+        return mWalkFilters;
+    }
+
+    public void setWalkFilters(String walkFilters) {
+        mWalkFilters = walkFilters;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Returns the number of files found in indexed directories.
+     */
+    public int getFileCount() {
+        int count = 0;
+        for (Entry entry : mEntries.values()) {
+            count += entry.getFileCount();
+        }
+        return count;
+    }
+
+    public Entry get(String directory) {
+        return mEntries.get(directory);
+    }
+
+    public void put(String directory, Entry entry) {
+        mEntries.put(directory, entry);
+    }
+
+    /**
+     * Returns the entry for directory if the directory is known to be
+     * unchanged since it was indexed, and null otherwise.
+     */
+    public Entry getUnchanged(String directory, long mtime) {
+        Entry entry = mEntries.get(directory);
+        if (entry == null || mtime == 0 || entry.getMtime() != mtime) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Whether this index may be used to skip directories in a scan of root
+     * with the given ScanParameters.getWalkFilters() starting at now.
+     */
+    public boolean isUsableFor(File root, String walkFilters, long now) {
+        return mRoot.equals(root.getPath()) &&
+               mWalkFilters.equals(walkFilters) &&
+               now - mScanStartTime < MAX_AGE_MILLIS &&
+               now >= mScanStartTime;
+    }
+
+    /**
+     * Whether the media database still holds the files this index assumes
+     * it does.  An unchanged directory's files are never walked again, so
+     * after the database is cleared only a full walk finds them.  Rows
+     * include folders, so a database in step has at least as many rows as
+     * files; one with well under that has lost them.
+     *
+     * @param rowCount The database's rows under the index's root.
+     */
+    public boolean matchesDatabase(int rowCount) {
+        return rowCount > 0 && rowCount >= getFileCount() / 2;
+    }
+
+    public static ScanIndex load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unrecognized scan index " + file);
+            }
+            ScanIndex index = new ScanIndex(in.readUTF(), in.readLong());
+            index.setWalkFilters(in.readUTF());
+            int numEntries = in.readInt();
+            for (int i = 0; i < numEntries; i++) {
+                String directory = in.readUTF();
+                long mtime = in.readLong();
+                int childCount = in.readInt();
+                int fileCount = in.readInt();
+                boolean nomedia = in.readBoolean();
+                String[] subdirs = new String[in.readInt()];
+                for (int j = 0; j < subdirs.length; j++) {
+                    subdirs[j] = in.readUTF();
+                }
+                index.put(directory,
+                          new Entry(mtime, childCount, fileCount, nomedia,
+                                    subdirs));
+            }
+            return index;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the index atomically, so a crash midway leaves the previous
+     * index in place.
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mRoot);
+            out.writeLong(mScanStartTime);
+            out.writeUTF(mWalkFilters);
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, Entry> mapEntry : mEntries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                long mtime = entry.getMtime();
+                if (mtime > mScanStartTime - MTIME_SLACK_MILLIS) {
+                    // Too close to call; relist next time.
+                    mtime = 0;
+                }
+                out.writeUTF(mapEntry.getKey());
+                out.writeLong(mtime);
+                out.writeInt(entry.getChildCount());
+                out.writeInt(entry.getFileCount());
+                out.writeBoolean(entry.getNomedia());
+                out.writeInt(entry.getSubdirs().length);
+                for (String subdir : entry.getSubdirs()) {
+                    out.writeUTF(subdir);
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+}
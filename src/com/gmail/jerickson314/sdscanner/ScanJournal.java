@@ -0,0 +1,300 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the append-only journal that lets a scan killed
+ * partway through be resumed.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+
+/**
+ * Journal of the paths handed to the media scanner and of which ones it
+ * has finished.  Paths are numbered in the order they are added, which
+ * must match the order ScanSubmitter sends them in.
+ *
+ * After a header, the file is a sequence of records, each starting with a
+ * tag byte: a path, stored as the length of the prefix it shares with the
+ * previous path followed by the rest; the number of a completed path; or
+ * the end of the path list.  Records are only ever appended, so a process
+ * killed mid-write at worst leaves a torn last record, which is ignored.
+ *
+ * Completions are flushed every FLUSH_EVERY records, so a kill loses at
+ * most that many, and those paths are simply scanned again.
+ */
+public class ScanJournal {
+
+    /**
+     * What a resumed scan needs from an interrupted one.
+     */
+    static class Resume {
+        ArrayList<File> mRoots = new ArrayList<File>();
+        boolean mRestrictDbUpdate;
+        PathSet mRemaining;
+
+        public ArrayList<File> getRoots() {
+            return mRoots;
+        }
+
+        public boolean getRestrictDbUpdate() {
+            return mRestrictDbUpdate;
+        }
+
+        public PathSet getRemaining() {
+            return mRemaining;
+        }
+    }
+
+    private static final int MAGIC = 0x5344534A; // "SDSJ"
+    private static final int VERSION = 2;
+
+    private static final byte TAG_PATH = 1;
+    private static final byte TAG_COMPLETED = 2;
+    private static final byte TAG_END_OF_PATHS = 3;
+
+    static final String FILE_NAME = "scan_journal";
+
+    private static final int FLUSH_EVERY = 64;
+
+    DataOutputStream mOut;
+    String mLastPath = "";
+    int mUnflushed = 0;
+    boolean mPathsFinished = false;
+
+    /**
+     * Starts a new journal in file, replacing any old one.
+     */
+    public ScanJournal(File file, ScanParameters scanParameters)
+            throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        mOut.writeInt(MAGIC);
+        mOut.writeInt(VERSION);
+        mOut.writeInt(scanParameters.getRoots().size());
+        for (File root : scanParameters.getRoots()) {
+            mOut.writeUTF(root.getPath());
+        }
+        mOut.writeBoolean(scanParameters.getRestrictDbUpdate());
+        mOut.flush();
+    }
+
+    // A failing journal must not fail the scan, so errors just stop it.
+    private void failed(IOException ex) {
+        Log.w("SDScanner", "Scan journal disabled", ex);
+        close();
+    }
+
+    private static int sharedPrefix(String a, String b) {
+        int limit = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < limit && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Records the next path sent to the scanner.  May be called from any
+     * thread, but callers submitting from several threads must hold the
+     * journal's lock across this and the submit, to keep the numbering.
+     */
+    public synchronized void addPath(String path) {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            int prefix = sharedPrefix(mLastPath, path);
+            mOut.writeByte(TAG_PATH);
+            mOut.writeShort(prefix);
+            mOut.writeUTF(path.substring(prefix));
+            mLastPath = path;
+        }
+        catch (IOException ex) {
+            failed(ex);
+        }
+    }
+
+    /**
+     * Records the whole path list at once.  Slow for big lists, so call it
+     * off the main thread.
+     */
+    public void addPaths(Iterator<String> paths) {
+        while (paths.hasNext()) {
+            addPath(paths.next());
+        }
+    }
+
+    /**
+     * Marks the path list as complete, making the journal resumable.
+     */
+    public synchronized void finishPaths() {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.writeByte(TAG_END_OF_PATHS);
+            mOut.flush();
+            mPathsFinished = true;
+        }
+        catch (IOException ex) {
+            failed(ex);
+        }
+    }
+
+    /**
+     * True once the path list is complete, so load() would resume it.
+     */
+    public synchronized boolean isResumable() {
+        return mPathsFinished;
+    }
+
+    public synchronized void markCompleted(int index) {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.writeByte(TAG_COMPLETED);
+            mOut.writeInt(index);
+            mUnflushed++;
+            if (mUnflushed >= FLUSH_EVERY) {
+                mOut.flush();
+                mUnflushed = 0;
+            }
+        }
+        catch (IOException ex) {
+            failed(ex);
+        }
+    }
+
+    public synchronized void close() {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.close();
+        }
+        catch (IOException ex) {
+            // Nothing more to lose.
+        }
+        mOut = null;
+    }
+
+    private static DataInputStream openChecked(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            in.close();
+            throw new IOException("Not a scan journal: " + file);
+        }
+        return in;
+    }
+
+    /**
+     * Reads an interrupted scan's journal.
+     *
+     * @return What is left to scan, or null if the journal never got a
+     *         complete path list and so can't be resumed.
+     */
+    public static Resume load(File file) throws IOException {
+        // First pass finds what completed, second collects the rest.
+        BitSet completed = new BitSet();
+        boolean finished = false;
+        DataInputStream in = openChecked(file);
+        try {
+            int rootCount = in.readInt();
+            for (int i = 0; i < rootCount; i++) {
+                in.readUTF();
+            }
+            in.readBoolean();
+            try {
+                while (true) {
+                    byte tag = in.readByte();
+                    if (tag == TAG_PATH) {
+                        in.readShort();
+                        in.readUTF();
+                    }
+                    else if (tag == TAG_COMPLETED) {
+                        completed.set(in.readInt());
+                    }
+                    else if (tag == TAG_END_OF_PATHS) {
+                        finished = true;
+                    }
+                    else {
+                        break;
+                    }
+                }
+            }
+            catch (EOFException ex) {
+                // Torn or missing last record.
+            }
+        }
+        finally {
+            in.close();
+        }
+        if (!finished) {
+            return null;
+        }
+
+        Resume resume = new Resume();
+        resume.mRemaining = new PathSet();
+        in = openChecked(file);
+        try {
+            int rootCount = in.readInt();
+            for (int i = 0; i < rootCount; i++) {
+                resume.mRoots.add(new File(in.readUTF()));
+            }
+            resume.mRestrictDbUpdate = in.readBoolean();
+            String lastPath = "";
+            int index = 0;
+            while (true) {
+                byte tag = in.readByte();
+                if (tag == TAG_PATH) {
+                    int prefix = in.readUnsignedShort();
+                    lastPath = lastPath.substring(0, prefix) + in.readUTF();
+                    if (!completed.get(index)) {
+                        resume.mRemaining.add(lastPath);
+                    }
+                    index++;
+                }
+                else if (tag == TAG_COMPLETED) {
+                    in.readInt();
+                }
+                else {
+                    // End of the path list; only completions follow.
+                    break;
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+        resume.mRemaining.compact();
+        return resume;
+    }
+}
@@ -0,0 +1,210 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the counters and timers collected during a scan, and
+ * the JSON report built from them.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and phase timers for one scan.  Counters may be bumped from any
+ * thread; hot loops should add up locally and call add() once per batch.
+ * With a pipelined scan the phases overlap, so their times need not sum to
+ * the total.
+ */
+public class ScanMetrics {
+
+    enum Phase { WALK, DATABASE, SCAN }
+
+    enum Counter {
+        // Folders listed by the walk, not counting unchanged ones.
+        DIRECTORIES_LISTED,
+        // Metadata lookups (stat, realpath) on files and folders.
+        STAT_CALLS,
+        DB_ROWS_READ,
+        ROWS_UP_TO_DATE,
+        PATHS_SUBMITTED,
+        // Walked files left out by the file type filter.
+        FILES_FILTERED,
+        // Database rows whose file's mtime came from the walk.
+        STAT_CACHE_HITS,
+        // Rows of missing files deleted without the media scanner.
+        ROWS_DELETED,
+        CALLBACKS_RECEIVED
+    }
+
+    static final String FILE_NAME = "scan_metrics.json";
+
+    private static final int VERSION = 1;
+
+    AtomicLongArray mCounters = new AtomicLongArray(Counter.values().length);
+    AtomicLongArray mPhaseStart = new AtomicLongArray(Phase.values().length);
+    AtomicLongArray mPhaseElapsed = new AtomicLongArray(Phase.values().length);
+    // Only touched on the thread running the submitter.
+    LatencyHistogram mScannerLatency = new LatencyHistogram();
+    // One {rows, ms, succeeded, backoff ms} per database read attempt.
+    // Guarded by itself.
+    ArrayList<long[]> mDatabaseAttempts = new ArrayList<long[]>();
+
+    long mStartTime = System.currentTimeMillis();
+    long mStartNanos = System.nanoTime();
+    long mEndNanos = 0;
+    volatile boolean mCancelled = false;
+
+    public void add(Counter counter, long delta) {
+        mCounters.addAndGet(counter.ordinal(), delta);
+    }
+
+    public void increment(Counter counter) {
+        mCounters.incrementAndGet(counter.ordinal());
+    }
+
+    public long get(Counter counter) {
+        return mCounters.get(counter.ordinal());
+    }
+
+    public void startPhase(Phase phase) {
+        mPhaseStart.set(phase.ordinal(), System.nanoTime());
+    }
+
+    public void endPhase(Phase phase) {
+        long start = mPhaseStart.getAndSet(phase.ordinal(), 0);
+        if (start != 0) {
+            mPhaseElapsed.addAndGet(phase.ordinal(), System.nanoTime() - start);
+        }
+    }
+
+    public long getPhaseMillis(Phase phase) {
+        return mPhaseElapsed.get(phase.ordinal()) / 1000000L;
+    }
+
+    public void recordScannerLatency(long nanos) {
+        mScannerLatency.record(nanos / 1000L);
+    }
+
+    public LatencyHistogram getScannerLatency() {
+        return mScannerLatency;
+    }
+
+    public void recordDatabaseAttempt(long rows, long millis,
+                                      boolean succeeded, long backoffMillis) {
+        synchronized (mDatabaseAttempts) {
+            mDatabaseAttempts.add(new long[] {rows, millis,
+                                              succeeded ? 1 : 0, backoffMillis});
+        }
+    }
+
+    /**
+     * Marks the scan as over, closing any phase still open.
+     */
+    public void finish() {
+        for (Phase phase : Phase.values()) {
+            endPhase(phase);
+        }
+        mEndNanos = System.nanoTime();
+    }
+
+    public void setCancelled(boolean cancelled) {
+        mCancelled = cancelled;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public long getTotalMillis() {
+        long end = mEndNanos != 0 ? mEndNanos : System.nanoTime();
+        return (end - mStartNanos) / 1000000L;
+    }
+
+    private static String jsonName(Enum<?> value) {
+        return value.name().toLowerCase(Locale.US);
+    }
+
+    // Every value is a number or boolean, so nothing needs escaping.
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"version\":").append(VERSION);
+        json.append(",\"start_time\":").append(mStartTime);
+        json.append(",\"cancelled\":").append(mCancelled);
+        json.append(",\"phases_ms\":{");
+        for (Phase phase : Phase.values()) {
+            json.append('"').append(jsonName(phase)).append("\":")
+                .append(getPhaseMillis(phase)).append(',');
+        }
+        json.append("\"total\":").append(getTotalMillis()).append('}');
+        json.append(",\"counts\":{");
+        for (Counter counter : Counter.values()) {
+            if (counter.ordinal() > 0) {
+                json.append(',');
+            }
+            json.append('"').append(jsonName(counter)).append("\":")
+                .append(get(counter));
+        }
+        json.append('}');
+        LatencyHistogram latency = mScannerLatency;
+        json.append(",\"scanner_latency_us\":{");
+        json.append("\"count\":").append(latency.getCount());
+        json.append(",\"p50\":").append(latency.getPercentile(50));
+        json.append(",\"p90\":").append(latency.getPercentile(90));
+        json.append(",\"p99\":").append(latency.getPercentile(99));
+        json.append(",\"max\":").append(latency.getMax());
+        json.append('}');
+        json.append(",\"database_attempts\":[");
+        synchronized (mDatabaseAttempts) {
+            for (int i = 0; i < mDatabaseAttempts.size(); i++) {
+                long[] attempt = mDatabaseAttempts.get(i);
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append("{\"rows\":").append(attempt[0]);
+                json.append(",\"ms\":").append(attempt[1]);
+                json.append(",\"ok\":").append(attempt[2] != 0);
+                json.append(",\"backoff_ms\":").append(attempt[3]);
+                json.append('}');
+            }
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    /**
+     * Writes report atomically, as ScanIndex does.
+     */
+    public static void save(String report, File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(temp),
+                                            "UTF-8");
+        try {
+            out.write(report);
+        }
+        finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+}
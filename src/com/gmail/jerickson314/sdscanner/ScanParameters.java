@@ -0,0 +1,330 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the options for a single scan, and the checks for
+ * which files the scan covers.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+public class ScanParameters {
+    File mPath;
+    ArrayList<File> mRoots;
+    boolean mRestrictDbUpdate;
+    boolean mLowStatWalk = true;
+    boolean mFullRescan = false;
+    int mScanWindow = ScanSubmitter.DEFAULT_WINDOW;
+    int mScanBatchSize = ScanSubmitter.DEFAULT_BATCH_SIZE;
+    boolean mPipelined = false;
+    int mSpillThreshold = 0;
+    boolean mUseScanIndex = true;
+    boolean mWatch = false;
+    boolean mDeleteMissingRows = false;
+    boolean mPlanOnly = false;
+    boolean mAllVolumes = false;
+    ScopeMatcher mScopeMatcher;
+    // Roots the exclusion patterns are relative to.  Those of the whole
+    // scan, even when rescanning a subtree of it.
+    ScopeMatcher mExclusionScope;
+    ExclusionMatcher mExclusions = ExclusionMatcher.NONE;
+    MediaTypeFilter mTypeFilter =
+            new MediaTypeFilter(MediaTypeFilter.Mode.EVERYTHING, false);
+
+    public ScanParameters(File path, boolean restrictDbUpdate) {
+        mPath = path;
+        mRoots = new ArrayList<File>();
+        mRoots.add(path);
+        mRestrictDbUpdate = restrictDbUpdate;
+        mScopeMatcher = new ScopeMatcher(path);
+        mExclusionScope = mScopeMatcher;
+    }
+
+    /**
+     * Parameters for scanning several trees, such as every mounted storage
+     * volume, as one scan.
+     *
+     * @param roots Canonical, at least one.
+     */
+    public ScanParameters(ArrayList<File> roots, boolean restrictDbUpdate) {
+        mRestrictDbUpdate = restrictDbUpdate;
+        setRoots(roots);
+    }
+
+    /**
+     * Replaces the trees to scan, once every mounted volume has been found.
+     *
+     * @param roots Canonical, at least one.
+     */
+    public void setRoots(ArrayList<File> roots) {
+        mPath = roots.get(0);
+        mRoots = new ArrayList<File>(roots);
+        mScopeMatcher = new ScopeMatcher();
+        for (File root : roots) {
+            mScopeMatcher.addRoot(root);
+        }
+        mExclusionScope = mScopeMatcher;
+    }
+
+    // The first root, and the only one unless scanning several volumes.
+    public File getPath() {
+        return mPath;
+    }
+
+    public ArrayList<File> getRoots() {
+        return mRoots;
+    }
+
+    // Scan every mounted volume rather than just the path.  Finding them
+    // can mean reading /proc/mounts, so it is left to the preparation task,
+    // which calls setRoots().
+    public boolean getAllVolumes() {
+        return mAllVolumes;
+    }
+
+    public void setAllVolumes(boolean allVolumes) {
+        mAllVolumes = allVolumes;
+    }
+
+    public boolean isMultiVolume() {
+        return mRoots.size() > 1;
+    }
+
+    public boolean getRestrictDbUpdate() {
+        return mRestrictDbUpdate;
+    }
+
+    public boolean getLowStatWalk() {
+        return mLowStatWalk;
+    }
+
+    public void setLowStatWalk(boolean lowStatWalk) {
+        mLowStatWalk = lowStatWalk;
+    }
+
+    // Ignore the index from the last scan and list every directory.
+    public boolean getFullRescan() {
+        return mFullRescan;
+    }
+
+    public void setFullRescan(boolean fullRescan) {
+        mFullRescan = fullRescan;
+    }
+
+    // Most paths the media scanner is asked for before it reports back.
+    public int getScanWindow() {
+        return mScanWindow;
+    }
+
+    public void setScanWindow(int scanWindow) {
+        mScanWindow = scanWindow;
+    }
+
+    // Paths sent to the media scanner at a time.
+    public int getScanBatchSize() {
+        return mScanBatchSize;
+    }
+
+    public void setScanBatchSize(int scanBatchSize) {
+        mScanBatchSize = scanBatchSize;
+    }
+
+    // Read the database first, then send files to the scanner as the
+    // walk finds them rather than after preparation finishes.  Never
+    // when spilling, as that holds every database row in memory, or when
+    // only planning.
+    public boolean getPipelined() {
+        return mPipelined && mSpillThreshold == 0 && !mPlanOnly;
+    }
+
+    public void setPipelined(boolean pipelined) {
+        mPipelined = pipelined;
+    }
+
+    // Paths held in memory before the file list spills to disk, or 0 to
+    // keep it all in memory.
+    public int getSpillThreshold() {
+        return mSpillThreshold;
+    }
+
+    public void setSpillThreshold(int spillThreshold) {
+        mSpillThreshold = spillThreshold;
+    }
+
+    // Load and save the index of unchanged directories.  Off for partial
+    // scans, whose index would not cover the whole tree.
+    public boolean getUseScanIndex() {
+        return mUseScanIndex;
+    }
+
+    public void setUseScanIndex(boolean useScanIndex) {
+        mUseScanIndex = useScanIndex;
+    }
+
+    // Keep watching the tree for changes once the scan completes.
+    public boolean getWatch() {
+        return mWatch;
+    }
+
+    public void setWatch(boolean watch) {
+        mWatch = watch;
+    }
+
+    // Delete missing files' database rows directly, leaving them to the
+    // media scanner only if the provider refuses.  Off unless asked for,
+    // as older providers delete the file too.
+    public boolean getDeleteMissingRows() {
+        return mDeleteMissingRows;
+    }
+
+    public void setDeleteMissingRows(boolean deleteMissingRows) {
+        mDeleteMissingRows = deleteMissingRows;
+    }
+
+    // Walk and read the database, then report what the scan would do
+    // instead of doing it.
+    public boolean getPlanOnly() {
+        return mPlanOnly;
+    }
+
+    public void setPlanOnly(boolean planOnly) {
+        mPlanOnly = planOnly;
+    }
+
+    // Folders and files never walked, read from the database or scanned.
+    public ExclusionMatcher getExclusions() {
+        return mExclusions;
+    }
+
+    public void setExclusions(ExclusionMatcher exclusions) {
+        mExclusions = exclusions;
+    }
+
+    // Which walked files go to the media scanner.
+    public MediaTypeFilter getTypeFilter() {
+        return mTypeFilter;
+    }
+
+    public void setTypeFilter(MediaTypeFilter typeFilter) {
+        mTypeFilter = typeFilter;
+    }
+
+    /**
+     * Describes the settings that decide which files a walk finds, so a
+     * scan index is only reused by walks that would find the same files.
+     */
+    public String getWalkFilters() {
+        return mTypeFilter.getMode() + " " + mTypeFilter.getSniff() + "\n" +
+               mExclusions.getPatterns();
+    }
+
+    /**
+     * Whether a walked file, known not to be a folder, should be scanned.
+     * May read the file.
+     */
+    public boolean isWantedFile(File file) {
+        return mTypeFilter.accepts(file);
+    }
+
+    /**
+     * Returns parameters for rescanning just path, a part of this scan's
+     * tree, with the database pass restricted to it.
+     */
+    public ScanParameters forSubtree(File path) {
+        ScanParameters subtree = new ScanParameters(path, true);
+        subtree.setLowStatWalk(mLowStatWalk);
+        subtree.setScanWindow(mScanWindow);
+        subtree.setScanBatchSize(mScanBatchSize);
+        subtree.setUseScanIndex(false);
+        subtree.setExclusions(mExclusions);
+        subtree.mExclusionScope = mExclusionScope;
+        subtree.setTypeFilter(mTypeFilter);
+        subtree.setDeleteMissingRows(mDeleteMissingRows);
+        return subtree;
+    }
+
+    public boolean shouldScan(File file, boolean fromDb)
+            throws IOException {
+        // Empty directory check.
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files == null || files.length == 0) {
+                Log.w("SDScanner", "Scan of empty directory " +
+                      file.getCanonicalPath() + " skipped to avoid bug.");
+                return false;
+            }
+        }
+        return isInScope(file.getPath(), fromDb) &&
+               !isExcluded(file.getPath());
+    }
+
+    public ScopeMatcher getScopeMatcher() {
+        return mScopeMatcher;
+    }
+
+    // Paths outside every root are matched from /.
+    private String relativePath(String path) {
+        String root = mExclusionScope.rootOf(path);
+        if (root == null) {
+            root = File.separator;
+        }
+        int start = root.length();
+        if (!root.endsWith(File.separator)) {
+            start++;
+        }
+        return start >= path.length() ? "" : path.substring(start);
+    }
+
+    /**
+     * Whether path or a folder above it matches an exclusion pattern.
+     *
+     * @param path Must be canonical.
+     */
+    public boolean isExcluded(String path) {
+        return !mExclusions.isEmpty() &&
+               mExclusions.excludes(relativePath(path));
+    }
+
+    /**
+     * Cheaper isExcluded() for a walk, which has already checked the
+     * folders above path.
+     */
+    public boolean isExcludedEntry(String path) {
+        return !mExclusions.isEmpty() &&
+               mExclusions.excludesEntry(relativePath(path));
+    }
+
+    /**
+     * @param path Must be canonical.
+     */
+    public boolean isInScope(String path, boolean fromDb) {
+        if (!mRestrictDbUpdate && fromDb) {
+            return true;
+        }
+        if (mScopeMatcher.matches(path)) {
+            return true;
+        }
+        if (!fromDb) {
+            Log.w("SDScanner", "File " + path +
+                  " outside of scan directory skipped.");
+        }
+        return false;
+    }
+}
@@ -0,0 +1,197 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the report of what a scan would do, worked out
+ * without doing it, and the scanner throughput its estimate is based on.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * What a scan found it would have to do: the walk and database pass run
+ * as usual, but nothing is deleted or sent to the media scanner.  The time
+ * the scanner would take is estimated from the throughput of past scans,
+ * kept in RATE_FILE_NAME.
+ */
+public class ScanPlan {
+
+    static final String RATE_FILE_NAME = "scanner_rate";
+
+    private static final int MAGIC = 0x53445352; // "SDSR"
+    private static final int VERSION = 1;
+
+    int mNewCount;
+    int mStaleCount;
+    int mMissingCount;
+    boolean mDeleteMissingRows;
+    int mPathCount;
+    long mBytes;
+    // Paths per second, or 0 if no scan has measured it yet.
+    float mScannerRate;
+
+    /**
+     * @param pathCount Every path the scan would hand on, missing files'
+     *                  included.
+     * @param deleteMissingRows Whether missing files' rows would be deleted
+     *                          directly rather than scanned.
+     */
+    public ScanPlan(int newCount, int staleCount, int missingCount,
+                    int pathCount, boolean deleteMissingRows) {
+        mNewCount = newCount;
+        mStaleCount = staleCount;
+        mMissingCount = missingCount;
+        mPathCount = pathCount;
+        mDeleteMissingRows = deleteMissingRows;
+    }
+
+    public int getNewCount() {
+        return mNewCount;
+    }
+
+    public int getStaleCount() {
+        return mStaleCount;
+    }
+
+    public int getMissingCount() {
+        return mMissingCount;
+    }
+
+    // Size of the files the scanner would read.
+    public long getBytes() {
+        return mBytes;
+    }
+
+    public void setBytes(long bytes) {
+        mBytes = bytes;
+    }
+
+    public float getScannerRate() {
+        return mScannerRate;
+    }
+
+    public void setScannerRate(float scannerRate) {
+        mScannerRate = scannerRate;
+    }
+
+    // Rows the scan would delete without the scanner's help.
+    public int getRowsToDelete() {
+        return mDeleteMissingRows ? mMissingCount : 0;
+    }
+
+    public int getPathsToScan() {
+        return mPathCount - getRowsToDelete();
+    }
+
+    /**
+     * Returns how long the scanner would take over the paths, or -1 if no
+     * past scan has measured its throughput.
+     */
+    public long getEstimatedScanMillis() {
+        if (mScannerRate <= 0) {
+            return -1;
+        }
+        return (long) (1000.0 * getPathsToScan() / mScannerRate);
+    }
+
+    // Every value is a number, so nothing needs escaping.
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"version\":").append(VERSION);
+        json.append(",\"new\":").append(mNewCount);
+        json.append(",\"stale\":").append(mStaleCount);
+        json.append(",\"missing\":").append(mMissingCount);
+        json.append(",\"rows_to_delete\":").append(getRowsToDelete());
+        json.append(",\"paths_to_scan\":").append(getPathsToScan());
+        json.append(",\"bytes\":").append(mBytes);
+        json.append(",\"scanner_paths_per_second\":").append(mScannerRate);
+        json.append(",\"estimated_scan_ms\":")
+            .append(getEstimatedScanMillis());
+        json.append('}');
+        return json.toString();
+    }
+
+    /**
+     * Returns the median of a scan's batch rates, as ScanSubmitter records
+     * them, or 0 if there are none.
+     */
+    public static float medianRate(float[] rates) {
+        if (rates.length == 0) {
+            return 0;
+        }
+        float[] sorted = rates.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /**
+     * Returns the rate saved by the last scan, or 0 if there is none.
+     */
+    public static float loadRate(File file) {
+        if (!file.exists()) {
+            return 0;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return 0;
+                }
+                return in.readFloat();
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Folds a scan's measured rate into the saved one, averaging with
+     * earlier scans so one unusual scan doesn't decide the next estimate.
+     * Written atomically, as ScanIndex does.
+     */
+    public static void saveRate(File file, float measured)
+            throws IOException {
+        float previous = loadRate(file);
+        float rate = previous > 0 ? (previous + measured) / 2 : measured;
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeFloat(rate);
+        }
+        finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+}
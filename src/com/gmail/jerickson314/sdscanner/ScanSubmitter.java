@@ -0,0 +1,314 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the pipeline that feeds paths to the system media
+ * scanner a window at a time.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import android.util.Log;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Submits paths to the media scanner over a single connection, keeping at
+ * most a window of paths outstanding.  Paths are sent in batches, and the
+ * next batch goes out once enough completions have come back to make room
+ * for it.
+ *
+ * Paths come either from a finished set (submitAll()) or one at a time
+ * from any thread while a scan is still being prepared (submit()).  Once
+ * finishSubmitting() has been called and every path has been reported on,
+ * the connection is closed and the listener told.
+ *
+ * Completed paths are recorded in the ScanJournal, if one is set, by the
+ * number they were sent under; recording the paths themselves in the same
+ * order is left to the caller.
+ *
+ * Apart from submit() and finishSubmitting(), methods must be called on
+ * the thread behind the Executor (the main thread on a device), and the
+ * listener is called on that thread.
+ */
+public class ScanSubmitter implements MediaScanner.Client {
+
+    /**
+     * Callback interface used to report scanner progress.
+     */
+    static interface Listener {
+        // total is the number of paths submitted so far.
+        void onPathScanned(String path, int completed, int total);
+        void onAllScanned();
+    }
+
+    static final int DEFAULT_WINDOW = 32;
+    static final int DEFAULT_BATCH_SIZE = 8;
+
+    Executor mExecutor;
+    MediaScanner mScanner;
+    Listener mListener;
+    ScanMetrics mMetrics = new ScanMetrics();
+    ScanJournal mJournal;
+    int mWindow;
+    int mBatchSize;
+
+    boolean mConnected = false;
+    boolean mClosed = false;
+    boolean mFinished = false;
+
+    // Paths not yet sent come from mBulk first, then mQueue.
+    Iterator<String> mBulk;
+    ConcurrentLinkedQueue<String> mQueue = new ConcurrentLinkedQueue<String>();
+    // Paths handed to us so far, sent or not.
+    AtomicInteger mTotal = new AtomicInteger();
+    AtomicBoolean mPumpPosted = new AtomicBoolean();
+
+    // Paths sent so far.  Paths are numbered in the order they are sent.
+    int mNextIndex = 0;
+    int mInFlight = 0;
+    int mCompleted = 0;
+
+    // Outstanding paths, each with {number, time sent}.  Only ever holds a
+    // window's worth of paths, so lookups stay cheap however long the list.
+    HashMap<String, long[]> mInFlightPaths = new HashMap<String, long[]>();
+    // Numbers of paths the scanner has reported back on.
+    BitSet mCompletedIndexes = new BitSet();
+
+    // Throughput, in paths per second, over each run of mBatchSize
+    // completions.  Only the last RATE_CAPACITY batches are kept, as a
+    // ring, which is plenty for a median however long the scan.
+    static final int RATE_CAPACITY = 64;
+    float[] mBatchRates = new float[RATE_CAPACITY];
+    int mBatchCount = 0;
+    long mBatchStartTime;
+    int mBatchCompleted = 0;
+
+    public ScanSubmitter(MediaScanner scanner, Executor executor, int window,
+                         int batchSize, Listener listener) {
+        mScanner = scanner;
+        mExecutor = executor;
+        mWindow = Math.max(1, window);
+        mBatchSize = Math.max(1, Math.min(batchSize, mWindow));
+        mListener = listener;
+    }
+
+    public void setMetrics(ScanMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    public void setJournal(ScanJournal journal) {
+        mJournal = journal;
+    }
+
+    public void start() {
+        mScanner.connect(this);
+    }
+
+    public int getCompleted() {
+        return mCompleted;
+    }
+
+    public BitSet getCompletedIndexes() {
+        return mCompletedIndexes;
+    }
+
+    /**
+     * Returns the rates of the most recent batches, oldest first.
+     */
+    public float[] getBatchRates() {
+        int count = Math.min(mBatchCount, RATE_CAPACITY);
+        float[] rates = new float[count];
+        for (int i = 0; i < count; i++) {
+            rates[i] = mBatchRates[(mBatchCount - count + i) % RATE_CAPACITY];
+        }
+        return rates;
+    }
+
+    /**
+     * Submits every path in paths, in order.  The list must not change
+     * afterwards.
+     */
+    public void submitAll(PathList paths) {
+        mTotal.addAndGet(paths.size());
+        mBulk = paths.sortedIterator();
+        fillWindow();
+    }
+
+    /**
+     * Submits one path.  May be called from any thread.
+     */
+    public void submit(String path) {
+        mTotal.incrementAndGet();
+        mQueue.add(path);
+        if (mPumpPosted.compareAndSet(false, true)) {
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    mPumpPosted.set(false);
+                    fillWindow();
+                }
+            });
+        }
+    }
+
+    /**
+     * Declares that no more paths will be submitted.  May be called from
+     * any thread, after its last submit().
+     */
+    public void finishSubmitting() {
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                mClosed = true;
+                checkFinished();
+            }
+        });
+    }
+
+    /**
+     * Stops sending paths and closes the connection.  Paths already sent
+     * may still be scanned, but are not reported on, and the listener is
+     * not called again.
+     */
+    public void cancel() {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        mClosed = true;
+        mBulk = null;
+        mQueue.clear();
+        if (mConnected) {
+            mScanner.disconnect();
+            mConnected = false;
+        }
+    }
+
+    // Called on a binder thread.
+    public void onConnected() {
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                if (mFinished) {
+                    // Nothing was ever submitted, or cancelled.
+                    mScanner.disconnect();
+                    return;
+                }
+                mConnected = true;
+                mBatchStartTime = System.nanoTime();
+                fillWindow();
+            }
+        });
+    }
+
+    // Called on a binder thread.
+    public void onScanCompleted(final String path) {
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                pathCompleted(path);
+            }
+        });
+    }
+
+    private String nextPath() {
+        if (mBulk != null && mBulk.hasNext()) {
+            return mBulk.next();
+        }
+        return mQueue.poll();
+    }
+
+    private void fillWindow() {
+        if (!mConnected) {
+            return;
+        }
+        while (true) {
+            int available = mTotal.get() - mNextIndex;
+            int batch = Math.min(mBatchSize, available);
+            // Only send once a whole batch fits, unless fewer are waiting.
+            if (batch == 0 || mWindow - mInFlight < batch) {
+                return;
+            }
+            for (int i = 0; i < batch; i++) {
+                String path = nextPath();
+                if (path == null) {
+                    // Counted by submit() but not queued yet; it will post
+                    // another fill once it is.
+                    return;
+                }
+                mInFlightPaths.put(path,
+                        new long[] {mNextIndex, System.nanoTime()});
+                mNextIndex++;
+                mInFlight++;
+                mMetrics.increment(ScanMetrics.Counter.PATHS_SUBMITTED);
+                mScanner.scanFile(path);
+            }
+        }
+    }
+
+    // Callbacks can arrive in any order.  Every callback answers exactly one
+    // request, so the count is right even if the path can't be matched.
+    private void pathCompleted(String path) {
+        if (mFinished) {
+            // Cancelled; the connection is already closed.
+            return;
+        }
+        mMetrics.increment(ScanMetrics.Counter.CALLBACKS_RECEIVED);
+        long[] sent = mInFlightPaths.remove(path);
+        if (sent != null) {
+            mCompletedIndexes.set((int) sent[0]);
+            if (mJournal != null) {
+                mJournal.markCompleted((int) sent[0]);
+            }
+            mMetrics.recordScannerLatency(System.nanoTime() - sent[1]);
+        }
+        else {
+            Log.w("SDScanner", "Scanner reported unexpected path " + path);
+        }
+        mInFlight--;
+        mCompleted++;
+        recordThroughput();
+        mListener.onPathScanned(path, mCompleted, mTotal.get());
+        checkFinished();
+        fillWindow();
+    }
+
+    private void checkFinished() {
+        if (mFinished || !mClosed || mCompleted < mTotal.get()) {
+            return;
+        }
+        mFinished = true;
+        if (mConnected) {
+            mScanner.disconnect();
+            mConnected = false;
+        }
+        mListener.onAllScanned();
+    }
+
+    private void recordThroughput() {
+        mBatchCompleted++;
+        if (mBatchCompleted == mBatchSize) {
+            long now = System.nanoTime();
+            float rate = (1e9f * mBatchCompleted) /
+                         Math.max(1, now - mBatchStartTime);
+            mBatchRates[mBatchCount % RATE_CAPACITY] = rate;
+            mBatchCount++;
+            mBatchStartTime = now;
+            mBatchCompleted = 0;
+        }
+    }
+}
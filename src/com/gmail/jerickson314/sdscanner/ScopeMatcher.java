@@ -0,0 +1,76 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the check for whether a path lies inside the folders
+ * being scanned.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Matches canonical paths against one or more canonical include roots.  A
+ * path is in scope if it is a root or lies below one, decided by a prefix
+ * comparison on a path segment boundary, so no File objects are created
+ * per check.
+ */
+public class ScopeMatcher {
+    ArrayList<String> mRoots = new ArrayList<String>();
+
+    public ScopeMatcher() {
+    }
+
+    public ScopeMatcher(File root) {
+        addRoot(root);
+    }
+
+    /**
+     * @param root Must already be canonical.
+     */
+    public void addRoot(File root) {
+        String path = root.getPath();
+        // Only "/" itself keeps its trailing separator.
+        if (path.length() > 1 && path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        mRoots.add(path);
+    }
+
+    public ArrayList<String> getRoots() {
+        return mRoots;
+    }
+
+    public boolean matches(String path) {
+        return rootOf(path) != null;
+    }
+
+    /**
+     * Returns the root path is at or below, or null if out of scope.
+     */
+    public String rootOf(String path) {
+        for (int i = 0; i < mRoots.size(); i++) {
+            String root = mRoots.get(i);
+            if (path.startsWith(root) &&
+                    (path.length() == root.length() ||
+                     root.endsWith("/") ||
+                     path.charAt(root.length()) == '/')) {
+                return root;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,420 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains a sorted set of paths that spills to disk, for file
+ * lists too big to hold in memory.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorted set of paths whose memory use stays bounded however many paths
+ * it holds.  Additions and removals are recorded in memory, and once there
+ * are threshold of them they are written out as a sorted run.  Iterating
+ * merges the runs, oldest first, into a single sorted file and reads that
+ * back; where runs disagree about a path, the newest wins.
+ *
+ * Runs store each path as the length of the prefix it shares with the one
+ * before, followed by the rest, as in ScanJournal.
+ *
+ * Being on disk, the set can't tell whether a path was added before the
+ * last spill, so it is only a PathList: changes report nothing and paths
+ * can't be looked up.  Callers needing exact answers, like the walker's
+ * symlink loop check, keep their own set.
+ *
+ * All methods are synchronized.  Iterators see the set as it was when
+ * they were created, and do not support remove().  I/O errors surface as
+ * IllegalStateException, so the set can stand in for a PathSet.
+ */
+public class SpillingPathSet implements PathList {
+
+    // Paths changed in memory before spilling, used when a scan asks for
+    // a spilling set without saying how big.
+    static final int DEFAULT_THRESHOLD = 100000;
+
+    // Runs merged at once.  More runs are merged oldest first in several
+    // passes, keeping the open files and their buffers bounded.
+    private static final int MAX_MERGE_RUNS = 32;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+
+    File mDirectory;
+    int mThreshold;
+    int mNextFileNumber = 0;
+
+    // Changes since the last spill.  A path is in at most one of these.
+    PathSet mAdded = new PathSet();
+    PathSet mRemoved = new PathSet();
+
+    // Spilled runs, oldest first.
+    ArrayList<File> mRuns = new ArrayList<File>();
+    // Result of the last merge, if nothing has changed since, and its size.
+    File mMerged;
+    int mMergedSize = 0;
+
+    /**
+     * @param directory Private folder for the runs.  Created if needed, and
+     *                  files left in it by an earlier set are replaced.
+     * @param threshold Changes to hold in memory before spilling.
+     */
+    public SpillingPathSet(File directory, int threshold) {
+        mDirectory = directory;
+        mThreshold = Math.max(1, threshold);
+    }
+
+    public synchronized int getRunCount() {
+        return mRuns.size();
+    }
+
+    /**
+     * Whether any paths have been written to disk.
+     */
+    public synchronized boolean hasSpilled() {
+        return !mRuns.isEmpty() || mMerged != null;
+    }
+
+    public synchronized int size() {
+        if (!hasSpilled()) {
+            return mAdded.size();
+        }
+        merge();
+        return mMergedSize;
+    }
+
+    public synchronized void addPath(String path) {
+        mRemoved.remove(path);
+        if (mAdded.add(path)) {
+            spillIfFull();
+        }
+    }
+
+    public synchronized void removePath(String path) {
+        mAdded.remove(path);
+        if (hasSpilled()) {
+            // An older run may hold the path.
+            mRemoved.add(path);
+            spillIfFull();
+        }
+    }
+
+    /**
+     * Empties the set and deletes its files.
+     */
+    public synchronized void clear() {
+        mAdded.clear();
+        mRemoved.clear();
+        for (File run : mRuns) {
+            run.delete();
+        }
+        mRuns.clear();
+        if (mMerged != null) {
+            mMerged.delete();
+            mMerged = null;
+        }
+        mMergedSize = 0;
+    }
+
+    public synchronized Iterator<String> sortedIterator() {
+        if (!hasSpilled()) {
+            return mAdded.iterator();
+        }
+        merge();
+        try {
+            return new RunIterator(mMerged);
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException("Could not read spilled paths",
+                                            ex);
+        }
+    }
+
+    /**
+     * Deletes files left behind by sets that were never cleared, say by a
+     * process that was killed.
+     */
+    public static void deleteLeftovers(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    private File newFile() {
+        mDirectory.mkdirs();
+        return new File(mDirectory, "run-" + mNextFileNumber++);
+    }
+
+    private void spillIfFull() {
+        if (mAdded.size() + mRemoved.size() >= mThreshold) {
+            spill();
+        }
+    }
+
+    // Writes the changes in memory as a new run.
+    private void spill() {
+        if (mMerged != null) {
+            // Now just the oldest run.
+            mRuns.add(mMerged);
+            mMerged = null;
+        }
+        File run = newFile();
+        try {
+            RunWriter writer = new RunWriter(run);
+            try {
+                Iterator<String> added = mAdded.iterator();
+                Iterator<String> removed = mRemoved.iterator();
+                String nextAdded = added.hasNext() ? added.next() : null;
+                String nextRemoved = removed.hasNext() ? removed.next() : null;
+                while (nextAdded != null || nextRemoved != null) {
+                    if (nextRemoved == null ||
+                            (nextAdded != null &&
+                             PathSet.comparePaths(nextAdded, nextRemoved) < 0)) {
+                        writer.write(OP_ADD, nextAdded);
+                        nextAdded = added.hasNext() ? added.next() : null;
+                    }
+                    else {
+                        writer.write(OP_REMOVE, nextRemoved);
+                        nextRemoved = removed.hasNext() ? removed.next() : null;
+                    }
+                }
+            }
+            finally {
+                writer.close();
+            }
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException("Could not spill paths", ex);
+        }
+        mRuns.add(run);
+        mAdded.clear();
+        mRemoved.clear();
+    }
+
+    // Leaves the whole set in mMerged, as additions only.
+    private void merge() {
+        if (!mAdded.isEmpty() || !mRemoved.isEmpty()) {
+            spill();
+        }
+        if (mMerged != null) {
+            return;
+        }
+        try {
+            // Merging the oldest runs needs no removals kept, since there
+            // is nothing older for them to remove from.
+            while (mRuns.size() > MAX_MERGE_RUNS) {
+                ArrayList<File> oldest = new ArrayList<File>(
+                        mRuns.subList(0, MAX_MERGE_RUNS));
+                File merged = newFile();
+                mergeRuns(oldest, merged);
+                mRuns.subList(0, MAX_MERGE_RUNS).clear();
+                mRuns.add(0, merged);
+            }
+            File merged = newFile();
+            mMergedSize = mergeRuns(mRuns, merged);
+            mRuns.clear();
+            mMerged = merged;
+        }
+        catch (IOException ex) {
+            throw new IllegalStateException("Could not merge spilled paths",
+                                            ex);
+        }
+    }
+
+    // Merges runs, oldest first, into output and deletes them.  Returns
+    // the number of paths written.
+    private static int mergeRuns(ArrayList<File> runs, File output)
+            throws IOException {
+        PriorityQueue<RunReader> heads = new PriorityQueue<RunReader>();
+        RunWriter writer = new RunWriter(output);
+        int written = 0;
+        try {
+            for (int i = 0; i < runs.size(); i++) {
+                RunReader reader = new RunReader(runs.get(i), i);
+                if (reader.advance()) {
+                    heads.add(reader);
+                }
+                else {
+                    reader.close();
+                }
+            }
+            while (!heads.isEmpty()) {
+                String path = heads.peek().mPath;
+                byte op = OP_REMOVE;
+                int newest = -1;
+                // Every run holding path, newest deciding.
+                while (!heads.isEmpty() && heads.peek().mPath.equals(path)) {
+                    RunReader reader = heads.poll();
+                    if (reader.mAge > newest) {
+                        newest = reader.mAge;
+                        op = reader.mOp;
+                    }
+                    if (reader.advance()) {
+                        heads.add(reader);
+                    }
+                    else {
+                        reader.close();
+                    }
+                }
+                if (op == OP_ADD) {
+                    writer.write(OP_ADD, path);
+                    written++;
+                }
+            }
+        }
+        finally {
+            for (RunReader reader : heads) {
+                reader.close();
+            }
+            writer.close();
+        }
+        for (File run : runs) {
+            run.delete();
+        }
+        return written;
+    }
+
+    private static class RunWriter {
+        DataOutputStream mOut;
+        String mLastPath = "";
+
+        public RunWriter(File file) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file)));
+        }
+
+        public void write(byte op, String path) throws IOException {
+            int limit = Math.min(mLastPath.length(), path.length());
+            int prefix = 0;
+            while (prefix < limit &&
+                   mLastPath.charAt(prefix) == path.charAt(prefix)) {
+                prefix++;
+            }
+            mOut.writeByte(op);
+            mOut.writeShort(prefix);
+            mOut.writeUTF(path.substring(prefix));
+            mLastPath = path;
+        }
+
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+
+    private static class RunReader implements Comparable<RunReader> {
+        DataInputStream mIn;
+        // Position of the run, higher being newer.
+        int mAge;
+        byte mOp;
+        String mPath = "";
+
+        public RunReader(File file, int age) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            mAge = age;
+        }
+
+        // Reads the next record, returning false at the end of the run.
+        public boolean advance() throws IOException {
+            int op = mIn.read();
+            if (op < 0) {
+                return false;
+            }
+            try {
+                mOp = (byte) op;
+                int prefix = mIn.readUnsignedShort();
+                mPath = mPath.substring(0, prefix) + mIn.readUTF();
+            }
+            catch (EOFException ex) {
+                throw new IOException("Truncated spill file", ex);
+            }
+            return true;
+        }
+
+        public void close() {
+            try {
+                mIn.close();
+            }
+            catch (IOException ex) {
+                // Already read.
+            }
+        }
+
+        public int compareTo(RunReader other) {
+            return PathSet.comparePaths(mPath, other.mPath);
+        }
+    }
+
+    // Reads back a merged file, closing it at the end.  The file is never
+    // rewritten, and a later merge deleting it leaves an open reader
+    // unaffected.
+    private static class RunIterator implements Iterator<String> {
+        RunReader mReader;
+        boolean mHasNext;
+
+        public RunIterator(File file) throws IOException {
+            mReader = new RunReader(file, 0);
+            advance();
+        }
+
+        private void advance() throws IOException {
+            mHasNext = mReader.advance();
+            if (!mHasNext) {
+                mReader.close();
+            }
+        }
+
+        public boolean hasNext() {
+            return mHasNext;
+        }
+
+        public String next() {
+            if (!mHasNext) {
+                throw new NoSuchElementException();
+            }
+            String path = mReader.mPath;
+            try {
+                advance();
+            }
+            catch (IOException ex) {
+                mReader.close();
+                throw new IllegalStateException(
+                        "Could not read spilled paths", ex);
+            }
+            return path;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
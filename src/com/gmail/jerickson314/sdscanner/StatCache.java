@@ -0,0 +1,186 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the cache of file modification times taken during
+ * the walk, so the database pass need not stat walked files again.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Modification times of the files a walk found, keyed by path.  The walk
+ * has to stat every entry anyway to tell files from folders; with a stat
+ * call returning both type and mtime, the mtime comes free and the
+ * database pass can skip its own stat for every walked file.
+ *
+ * Paths are stored as 64-bit hashes in an open-addressed table, about 32
+ * bytes per file.  Two walked paths sharing a hash are vanishingly
+ * unlikely, and would at worst mean one file judged by the other's mtime.
+ */
+public class StatCache {
+
+    /**
+     * A single stat call giving a file's type and modification time.
+     */
+    static interface Stat {
+        // Returns DIRECTORY, MISSING, or the file's mtime in milliseconds.
+        long stat(String path);
+    }
+
+    static final long MISSING = -1;
+    static final long DIRECTORY = -2;
+    // Returned by getMtime() for paths the walk didn't record.
+    static final long NOT_CACHED = -3;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    Stat mStat;
+    // Hashes of 0 are stored as 1, leaving 0 to mark empty slots.
+    long[] mKeys = new long[INITIAL_CAPACITY];
+    long[] mMtimes = new long[INITIAL_CAPACITY];
+    int mSize = 0;
+
+    public StatCache(Stat stat) {
+        mStat = stat;
+    }
+
+    /**
+     * Returns the platform's combined stat, or null where there is none
+     * (before Android 5.0), in which case a cache would cost the walk an
+     * extra stat per file and save nothing.
+     */
+    public static Stat platformStat() {
+        try {
+            final Method stat = Class.forName("android.system.Os")
+                    .getMethod("stat", String.class);
+            Class<?> structStat = Class.forName("android.system.StructStat");
+            final Field mode = structStat.getField("st_mode");
+            final Field mtime = structStat.getField("st_mtime");
+            return new Stat() {
+                public long stat(String path) {
+                    try {
+                        Object result = stat.invoke(null, path);
+                        // S_IFMT and S_IFDIR.
+                        if ((mode.getInt(result) & 0170000) == 0040000) {
+                            return DIRECTORY;
+                        }
+                        return mtime.getLong(result) * 1000L;
+                    }
+                    catch (InvocationTargetException ex) {
+                        // ErrnoException; gone or unreadable.
+                        return MISSING;
+                    }
+                    catch (IllegalAccessException ex) {
+                        return MISSING;
+                    }
+                }
+            };
+        }
+        catch (Exception ex) {
+            return null;
+        }
+    }
+
+    private static long hash(String path) {
+        // 64-bit FNV-1a over the UTF-16 code units.
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < path.length(); i++) {
+            hash ^= path.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static int slot(long[] keys, long key) {
+        int mask = keys.length - 1;
+        int i = (int) (key ^ (key >>> 32)) & mask;
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private synchronized void put(String path, long mtime) {
+        if (mSize * 2 >= mKeys.length) {
+            long[] oldKeys = mKeys;
+            long[] oldMtimes = mMtimes;
+            mKeys = new long[oldKeys.length * 2];
+            mMtimes = new long[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int j = slot(mKeys, oldKeys[i]);
+                    mKeys[j] = oldKeys[i];
+                    mMtimes[j] = oldMtimes[i];
+                }
+            }
+        }
+        long key = hash(path);
+        int i = slot(mKeys, key);
+        if (mKeys[i] == 0) {
+            mKeys[i] = key;
+            mSize++;
+        }
+        mMtimes[i] = mtime;
+    }
+
+    /**
+     * Stats a walked entry, recording its mtime if it is a file.  Stands
+     * in for file.isDirectory(), at the same cost.
+     */
+    public boolean statEntry(File file) {
+        String path = file.getPath();
+        long result = mStat.stat(path);
+        if (result == DIRECTORY) {
+            return true;
+        }
+        if (result != MISSING) {
+            put(path, result);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the mtime the walk saw for path, in milliseconds, or
+     * NOT_CACHED.  A cached file existed when walked.
+     */
+    public synchronized long getMtime(String path) {
+        long key = hash(path);
+        int i = slot(mKeys, key);
+        return mKeys[i] == 0 ? NOT_CACHED : mMtimes[i];
+    }
+
+    /**
+     * Returns path's mtime in milliseconds, from the walk if it recorded
+     * one and from a stat otherwise, counting which in metrics.
+     */
+    public long lastModified(String path, ScanMetrics metrics) {
+        long mtime = getMtime(path);
+        if (mtime != NOT_CACHED) {
+            metrics.increment(ScanMetrics.Counter.STAT_CACHE_HITS);
+            return mtime;
+        }
+        metrics.increment(ScanMetrics.Counter.STAT_CALLS);
+        return new File(path).lastModified();
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+}
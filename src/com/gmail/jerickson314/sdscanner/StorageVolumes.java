@@ -0,0 +1,192 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the discovery of mounted storage volumes for scans
+ * of every volume at once.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Finds the storage volumes the media scanner can see: the primary
+ * external storage plus any SD cards and USB drives.  There is no public
+ * API for the list before 4.4, so older versions read /proc/mounts.
+ */
+public class StorageVolumes {
+
+    // File systems used for shared storage.  fuse and sdcardfs wrap the
+    // emulated and adopted volumes.
+    private static final String[] MEDIA_FILE_SYSTEMS = {
+        "vfat", "exfat", "texfat", "sdfat", "fuse", "sdcardfs", "ntfs"
+    };
+
+    // Mount points under these hold app or system data, not media.
+    private static final String[] PRIVATE_MOUNTS = {
+        "/mnt/secure", "/mnt/asec", "/mnt/obb", "/mnt/runtime",
+        "/mnt/shell", "/storage/emulated/legacy", "/storage/self"
+    };
+
+    /**
+     * Returns the canonical roots of the mounted volumes, primary first.
+     * Lists /proc/mounts on older versions, so call it off the main thread.
+     */
+    public static ArrayList<File> findMounted(Context context) {
+        ArrayList<File> roots = new ArrayList<File>();
+        String state = Environment.getExternalStorageState();
+        if (Environment.MEDIA_MOUNTED.equals(state) ||
+                Environment.MEDIA_MOUNTED_READ_ONLY.equals(state)) {
+            addRoot(roots, Environment.getExternalStorageDirectory());
+        }
+        if (Build.VERSION.SDK_INT >= 19) {
+            findFromAppDirectories(context, roots);
+        }
+        else {
+            findFromMounts(roots);
+        }
+        return roots;
+    }
+
+    /**
+     * Whether the volume holding file is mounted read-write.  Before KitKat
+     * only the primary volume's state is known, so files anywhere else
+     * count as unmounted.
+     */
+    public static boolean isMounted(File file) {
+        String state;
+        if (Build.VERSION.SDK_INT >= 19) {
+            state = Environment.getStorageState(file);
+        }
+        else {
+            File primary = Environment.getExternalStorageDirectory();
+            if (!isWithin(file, primary.getAbsolutePath())) {
+                try {
+                    if (!isWithin(file, primary.getCanonicalPath())) {
+                        return false;
+                    }
+                }
+                catch (IOException ex) {
+                    return false;
+                }
+            }
+            state = Environment.getExternalStorageState();
+        }
+        return Environment.MEDIA_MOUNTED.equals(state);
+    }
+
+    private static boolean isWithin(File file, String root) {
+        String path = file.getAbsolutePath();
+        return path.equals(root) || path.startsWith(root + "/");
+    }
+
+    private static void addRoot(ArrayList<File> roots, File root) {
+        try {
+            File canonical = root.getCanonicalFile();
+            String[] names = canonical.list();
+            if (names != null && !roots.contains(canonical)) {
+                roots.add(canonical);
+            }
+        }
+        catch (IOException ex) {
+            // Unreadable, so nothing to scan there anyway.
+        }
+    }
+
+    // Each volume gets an app-specific folder at <root>/Android/data/...,
+    // null where the volume is not mounted.
+    private static void findFromAppDirectories(Context context,
+                                               ArrayList<File> roots) {
+        File[] appDirectories = context.getExternalFilesDirs(null);
+        if (appDirectories == null) {
+            return;
+        }
+        for (File appDirectory : appDirectories) {
+            if (appDirectory == null) {
+                continue;
+            }
+            String state = Environment.getStorageState(appDirectory);
+            if (!Environment.MEDIA_MOUNTED.equals(state) &&
+                    !Environment.MEDIA_MOUNTED_READ_ONLY.equals(state)) {
+                continue;
+            }
+            String path = appDirectory.getPath();
+            int end = path.indexOf("/Android/data/");
+            if (end > 0) {
+                addRoot(roots, new File(path.substring(0, end)));
+            }
+        }
+    }
+
+    private static boolean isMediaMount(String mountPoint, String type) {
+        if (!mountPoint.startsWith("/storage/") &&
+                !mountPoint.startsWith("/mnt/")) {
+            return false;
+        }
+        for (String privateMount : PRIVATE_MOUNTS) {
+            if (mountPoint.startsWith(privateMount)) {
+                return false;
+            }
+        }
+        for (String mediaType : MEDIA_FILE_SYSTEMS) {
+            if (type.equals(mediaType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void findFromMounts(ArrayList<File> roots) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/mounts"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // device mount-point type options ...
+                String[] fields = line.split(" ");
+                if (fields.length < 3) {
+                    continue;
+                }
+                // Spaces in mount points are escaped as \040.
+                String mountPoint = fields[1].replace("\\040", " ");
+                if (isMediaMount(mountPoint, fields[2])) {
+                    addRoot(roots, new File(mountPoint));
+                }
+            }
+        }
+        catch (IOException ex) {
+            Log.w("SDScanner", "Could not read mounted volumes", ex);
+        }
+        finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                }
+                catch (IOException ex) {
+                    // Already read.
+                }
+            }
+        }
+    }
+}
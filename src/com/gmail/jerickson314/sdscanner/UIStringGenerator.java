@@ -17,8 +17,10 @@
 package com.gmail.jerickson314.sdscanner;
 
 import android.app.Activity;
+import android.util.SparseArray;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.Locale;
 
 public class UIStringGenerator {
     private static interface SubGenerator {
@@ -26,6 +28,12 @@ public class UIStringGenerator {
     }
 
     private static class ResourceSubGenerator implements SubGenerator {
+        // Resolved resource strings for sResourceLocale, shared by all
+        // generators since new ones are made for every progress update.
+        private static SparseArray<String> sResourceStrings =
+                new SparseArray<String>();
+        private static Locale sResourceLocale;
+
         int mResId;
 
         public ResourceSubGenerator(int resId) {
@@ -33,7 +41,19 @@ public class UIStringGenerator {
         }
 
         public String toString(Activity activity) {
-            return activity.getString(mResId);
+            Locale locale = getLocale(activity);
+            synchronized (sResourceStrings) {
+                if (!locale.equals(sResourceLocale)) {
+                    sResourceStrings.clear();
+                    sResourceLocale = locale;
+                }
+                String string = sResourceStrings.get(mResId);
+                if (string == null) {
+                    string = activity.getString(mResId);
+                    sResourceStrings.put(mResId, string);
+                }
+                return string;
+            }
         }
     }
 
@@ -51,6 +71,17 @@ public class UIStringGenerator {
 
     ArrayList<SubGenerator> mSubGenerators = new ArrayList<SubGenerator>();
 
+    // Rendering of the first mCachedCount sub-generators in mCachedLocale.
+    // Sub-generators are only ever appended, so a longer list can extend
+    // the cached string rather than start again.
+    String mCachedString;
+    int mCachedCount = 0;
+    Locale mCachedLocale;
+
+    private static Locale getLocale(Activity activity) {
+        return activity.getResources().getConfiguration().locale;
+    }
+
     public void addSubGenerator(int resId) {
         mSubGenerators.add(new ResourceSubGenerator(resId));
     }
@@ -77,11 +108,23 @@ public class UIStringGenerator {
     }
 
     public String toString(Activity activity) {
-        StringBuilder toReturn = new StringBuilder();
-        Iterator<SubGenerator> iterator = mSubGenerators.iterator();
+        Locale locale = getLocale(activity);
+        if (!locale.equals(mCachedLocale)) {
+            mCachedString = "";
+            mCachedCount = 0;
+            mCachedLocale = locale;
+        }
+        if (mCachedCount == mSubGenerators.size()) {
+            return mCachedString;
+        }
+        StringBuilder toReturn = new StringBuilder(mCachedString);
+        Iterator<SubGenerator> iterator =
+                mSubGenerators.listIterator(mCachedCount);
         while (iterator.hasNext()) {
             toReturn.append(iterator.next().toString(activity));
         }
-        return toReturn.toString();
+        mCachedString = toReturn.toString();
+        mCachedCount = mSubGenerators.size();
+        return mCachedString;
     }
 }
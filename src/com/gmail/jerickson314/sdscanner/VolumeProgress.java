@@ -0,0 +1,120 @@
+/* SD Scanner - A manual implementation of the SD rescan process, compatible
+ * with Android 4.4.
+ *
+ * This file contains the per-volume progress counts of a scan over several
+ * storage volumes.
+ *
+ * Copyright (C) 2013-2014 Jeremy Erickson
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package com.gmail.jerickson314.sdscanner;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Counts, for each volume of a scan, the files the walk found, the paths
+ * handed to the media scanner and the paths it has finished.  Counts may
+ * be bumped from any thread.
+ */
+public class VolumeProgress {
+
+    ArrayList<String> mRoots = new ArrayList<String>();
+    AtomicIntegerArray mFound;
+    AtomicIntegerArray mQueued;
+    AtomicIntegerArray mScanned;
+
+    /**
+     * @param roots Canonical volume roots.
+     */
+    public VolumeProgress(ArrayList<File> roots) {
+        for (File root : roots) {
+            mRoots.add(root.getPath());
+        }
+        mFound = new AtomicIntegerArray(mRoots.size());
+        mQueued = new AtomicIntegerArray(mRoots.size());
+        mScanned = new AtomicIntegerArray(mRoots.size());
+    }
+
+    public int getVolumeCount() {
+        return mRoots.size();
+    }
+
+    /**
+     * Returns the number of the volume holding path, or -1.  Volumes may
+     * be mounted inside one another, so the deepest root wins.
+     */
+    public int volumeOf(String path) {
+        int best = -1;
+        for (int i = 0; i < mRoots.size(); i++) {
+            String root = mRoots.get(i);
+            if (path.startsWith(root) &&
+                    (path.length() == root.length() ||
+                     path.charAt(root.length()) == File.separatorChar) &&
+                    (best < 0 || root.length() > mRoots.get(best).length())) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    public void addFound(int volume, int count) {
+        mFound.addAndGet(volume, count);
+    }
+
+    public void pathQueued(String path) {
+        int volume = volumeOf(path);
+        if (volume >= 0) {
+            mQueued.incrementAndGet(volume);
+        }
+    }
+
+    public void pathScanned(String path) {
+        int volume = volumeOf(path);
+        if (volume >= 0) {
+            mScanned.incrementAndGet(volume);
+        }
+    }
+
+    /**
+     * Summarizes the walk, as "root found, root found".
+     */
+    public String describeFound() {
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < mRoots.size(); i++) {
+            if (i > 0) {
+                description.append(", ");
+            }
+            description.append(mRoots.get(i)).append(' ')
+                       .append(mFound.get(i));
+        }
+        return description.toString();
+    }
+
+    /**
+     * Summarizes the media scanner's progress, as "root scanned/queued".
+     */
+    public String describeScanned() {
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < mRoots.size(); i++) {
+            if (i > 0) {
+                description.append(", ");
+            }
+            description.append(mRoots.get(i)).append(' ')
+                       .append(mScanned.get(i)).append('/')
+                       .append(mQueued.get(i));
+        }
+        return description.toString();
+    }
+}